@@ -0,0 +1,105 @@
+import kakkoiichris.kotoba.Glyph;
+import kakkoiichris.kotoba.RuleSet;
+
+import java.util.regex.Pattern;
+
+public class RuleSetTest {
+    public static void main(String[] args) {
+        var effect = Glyph.Effect.None.get();
+
+        // A lower priority rule matching first must not hide a higher priority match inside it
+        var rules = RuleSet.EMPTY.with(
+            new Glyph.Rule("B", Pattern.compile("\\w+"), false, effect, 0),
+            new Glyph.Rule("A", Pattern.compile("\\d+x"), false, effect, 10)
+        );
+
+        check(rules, "ab12x cd", "BBAAA.BB");
+
+        // Between equal priorities the rule added first claims the overlap
+        var tied = RuleSet.EMPTY.with(
+            new Glyph.Rule("B", Pattern.compile("\\w+"), false, effect, 0),
+            new Glyph.Rule("A", Pattern.compile("\\d+x"), false, effect, 0)
+        );
+
+        check(tied, "ab12x cd", "BBBBB.BB");
+
+        var reversed = RuleSet.EMPTY.with(
+            new Glyph.Rule("A", Pattern.compile("\\d+x"), false, effect, 0),
+            new Glyph.Rule("B", Pattern.compile("\\w+"), false, effect, 0)
+        );
+
+        check(reversed, "ab12x cd", "BBAAA.BB");
+
+        // Literals between word boundaries only match whole words
+        var keywords = RuleSet.EMPTY.with(
+            new Glyph.Rule("K", Pattern.compile("\\bif\\b"), false, effect, 0),
+            new Glyph.Rule("P", Pattern.compile("\\bpre"), false, effect, 0)
+        );
+        
+        check(keywords, "if iff elif prefix if", "KK..........PPP....KK");
+        
+        checkKeywordSpeed();
+        
+        System.out.println("RuleSet: ok");
+    }
+    
+    // Keyword rules share one pass over the text, so they must beat running each rule on its own
+    private static void checkKeywordSpeed() {
+        var effect = Glyph.Effect.None.get();
+        var rules = new Glyph.Rule[40];
+        
+        for (var i = 0; i < rules.length; i++) {
+            rules[i] = new Glyph.Rule("kw" + i, Pattern.compile("\\bkw" + i + "\\b"), false, effect, 0);
+        }
+        
+        var set = RuleSet.EMPTY.with(rules);
+        
+        var text = new StringBuilder();
+        
+        for (var i = 0; text.length() < 200_000; i++) {
+            text.append((i % 7 == 0) ? "kw" + (i % 50) : "word" + i).append(' ');
+        }
+        
+        var string = text.toString();
+        
+        var shared = Long.MAX_VALUE;
+        var separate = Long.MAX_VALUE;
+        
+        for (var round = 0; round < 5; round++) {
+            var start = System.nanoTime();
+            
+            set.match(string);
+            
+            shared = Math.min(shared, System.nanoTime() - start);
+            
+            start = System.nanoTime();
+            
+            for (var rule : rules) {
+                var matcher = rule.regex().matcher(string);
+                
+                while (matcher.find()) {
+                    matcher.start();
+                }
+            }
+            
+            separate = Math.min(separate, System.nanoTime() - start);
+        }
+        
+        if (shared >= separate) {
+            throw new AssertionError("keywords: %d us shared, %d us separate".formatted(shared / 1000, separate / 1000));
+        }
+    }
+
+    private static void check(RuleSet rules, String text, String expected) {
+        var matches = rules.match(text);
+        var actual = new StringBuilder();
+
+        for (var rule : matches) {
+            actual.append((rule != null) ? rule.name() : ".");
+        }
+
+        if (!actual.toString().equals(expected)) {
+            throw new AssertionError("%s: expected %s, got %s".formatted(text, expected, actual));
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package kakkoiichris.kotoba;
+
+// What a write does when the output waiting to be drawn is over the configured limit
+public enum Backpressure {
+    // Waits until the render loop catches up
+    BLOCK,
+    
+    // Throws away the oldest pending writes to make room
+    DROP_OLDEST,
+    
+    // Throws away the new write
+    DROP_NEWEST,
+    
+    // Throws away the new write, and writes a line saying how many were lost before the next one that fits
+    DROP_NEWEST_AND_REPORT,
+    
+    // Holds new writes back and merges those with the same style, so they are queued and matched as one once the loop catches up
+    // Writes past a second limit's worth of held back glyphs are thrown away
+    COALESCE
+}
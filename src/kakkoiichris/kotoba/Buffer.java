@@ -4,98 +4,98 @@ import java.awt.*;
 import java.awt.datatransfer.DataFlavor;
 import java.awt.datatransfer.UnsupportedFlavorException;
 import java.awt.event.*;
-import java.awt.image.BufferedImage;
 import java.io.IOException;
 import java.util.List;
 import java.util.*;
-import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 import java.util.concurrent.locks.ReentrantLock;
-import java.util.stream.Collectors;
 
 import static java.lang.Math.max;
 import static java.lang.Math.min;
 
 public class Buffer extends Canvas implements Runnable, KeyListener, MouseWheelListener {
-    private final int foreground;
-    private final int background;
-    private final Font font;
-    private final int xSpace;
-    private final int ySpace;
-    private final int tabSize;
     private final double frameRate;
-    private final double scrollSpeed;
     private final int scrollAmount;
     private final int scrollBarWidth;
-    private final double cursorSpeed;
     private final String inputDelimiter;
     
     // Graphics
-    private BufferedImage image;
-    private Raster raster;
-    
-    // Output
-    private final List<Glyph> output = new ArrayList<>();
-    private final List<Glyph> outputBuffer = new ArrayList<>();
-    private final ReentrantLock outputLock = new ReentrantLock();
+    private final Screen screen;
     
     // Input
-    private final List<Glyph> input = new ArrayList<>();
+    private final GapBuffer input;
     private final List<Glyph> inputBuffer = new ArrayList<>();
-    private final ArrayBlockingQueue<String> inputQueue = new ArrayBlockingQueue<>(1);
+    private final EventRing<String> inputQueue;
     private final ReentrantLock inputLock = new ReentrantLock();
     private final List<String> inputScanBuffer = new ArrayList<>();
-    private final List<String> inputHistory = new ArrayList<>();
+    private final History inputHistory;
     
-    private int inputIndex = 0;
     private int inputHistoryIndex = -1;
-    private boolean inputWaiting = false;
     
-    // Keys
-    private final ArrayBlockingQueue<KeyEvent> keyQueue = new ArrayBlockingQueue<>(1);
+    // Reverse search, null when not searching, the index is how far back the shown line is
+    private StringBuilder searchQuery = null;
+    private int searchIndex = -1;
     
-    private boolean keyWaiting = false;
-    private boolean keyOnPress = false;
+    // Paste
+    // Clipboard text is fed in from its own thread a chunk at a time, clearing the paster cancels it
+    private final int pasteLimit;
+    private final int pasteChunk;
     
-    // Cursor
-    private double cursorBlinkTimer = 0;
-    private boolean cursorVisible = false;
+    private volatile Thread paster = null;
+    private volatile double pasteProgress = 0.0;
     
-    // Formatting
-    private final Map<String, Glyph.Rule> rules = new HashMap<>();
+    // Completion
+    // Requested on the event thread and applied on the loop thread, results arrive once every provider answers or the budget runs out
+    private final int completionLimit;
+    private final int completionBudget;
+    private final List<CompletionProvider> completionProviders = new CopyOnWriteArrayList<>();
+    private final AtomicReference<Completion> completion = new AtomicReference<>();
     
-    private boolean rulesEnabled = true;
-    private Glyph.Effect effect;
-    private boolean inverted = false;
+    private volatile boolean completionRequested = false;
+    
+    // Repeated tabs step through the candidates while the input still holds the one shown
+    private Completion cycle = null;
+    private int cycleIndex = 0;
+    
+    // Keys
+    // The event thread only ever offers to these rings, so a reader that is slow or absent cannot stall it
+    private final EventRing<KeyEvent> keyQueue;
+    
+    private boolean keyOnPress = false;
     
     // Update Loop
     private final Thread thread = new Thread(this);
+    private final Scheduler scheduler = new Scheduler(thread);
     
-    private boolean running = false;
-    
-    private int scrollTarget = 0;
-    private double scrollOffset = 0.0;
+    private volatile boolean running = false;
     
     public Buffer(Console.Config config) {
-        foreground = config.getForeground();
-        background = config.getBackground();
-        font = config.getFont();
-        xSpace = config.getXSpace();
-        ySpace = config.getYSpace();
-        tabSize = config.getTabSize();
         frameRate = config.getFrameRate();
-        scrollSpeed = config.getScrollSpeed();
         scrollAmount = config.getScrollAmount();
         scrollBarWidth = config.getScrollBarWidth();
-        cursorSpeed = config.getCursorSpeed();
         inputDelimiter = config.getInputDelimiter();
+        pasteLimit = config.getPasteLimit();
+        pasteChunk = config.getPasteChunk();
+        completionLimit = config.getCompletionLimit();
+        completionBudget = config.getCompletionBudget();
         
-        effect = new Glyph.Effect.Color(foreground);
+        inputHistory = new History(config.getHistorySize(), config.getHistoryFile());
         
-        setPreferredSize(new Dimension(config.getWidth(), config.getHeight()));
+        inputQueue = new EventRing<>(config.getEventCapacity(), config.getEventOverflow());
+        keyQueue = new EventRing<>(config.getEventCapacity(), config.getEventOverflow());
+        
+        screen = new Screen(config);
         
-        image = new BufferedImage(config.getWidth(), config.getHeight(), BufferedImage.TYPE_INT_RGB);
+        input = screen.getInput();
         
-        raster = new Raster(image);
+        setPreferredSize(new Dimension(config.getWidth(), config.getHeight()));
+        
+        // Tab completes input instead of moving focus
+        setFocusTraversalKeysEnabled(false);
         
         addKeyListener(this);
         addMouseWheelListener(this);
@@ -103,49 +103,51 @@ public class Buffer extends Canvas implements Runnable, KeyListener, MouseWheelL
         addComponentListener(new ComponentAdapter() {
             @Override
             public void componentResized(ComponentEvent e) {
-                image = new BufferedImage(getWidth(), getHeight(), BufferedImage.TYPE_INT_RGB);
-                
-                raster = new Raster(image);
+                screen.resize(getWidth(), getHeight());
                 
-                end();
+                scheduler.wake();
             }
         });
     }
     
+    public Screen getScreen() {
+        return screen;
+    }
+    
     public Glyph.Effect getEffect() {
-        return effect;
+        return screen.getEffect();
     }
     
     public void setEffect(Glyph.Effect effect) {
-        this.effect = effect;
+        screen.setEffect(effect);
     }
     
     public boolean isInverted() {
-        return inverted;
+        return screen.isInverted();
     }
     
     public void setInverted(boolean inverted) {
-        this.inverted = inverted;
+        screen.setInverted(inverted);
     }
     
     public boolean isRulesEnabled() {
-        return rulesEnabled;
+        return screen.isRulesEnabled();
     }
     
     public void setRulesEnabled(boolean rulesEnabled) {
-        this.rulesEnabled = rulesEnabled;
+        screen.setRulesEnabled(rulesEnabled);
     }
     
-    private boolean isWaiting() {
-        return inputWaiting || keyWaiting;
+    public long getPending() {
+        return screen.getPending();
     }
     
-    private int getLineCount() {
-        return (int) output.stream().filter(glyph -> glyph.getChar() == '\n').count() + 1;
+    public boolean isPasting() {
+        return paster != null;
     }
     
-    private int getLinesOnScreen() {
-        return getHeight() / (font.getHeight() + ySpace);
+    public double getPasteProgress() {
+        return pasteProgress;
     }
     
     public void open() {
@@ -155,64 +157,70 @@ public class Buffer extends Canvas implements Runnable, KeyListener, MouseWheelL
     }
     
     public void close() {
-        try {
-            inputQueue.put("");
-            keyQueue.put(new KeyEvent(this, 0, 0, 0, KeyEvent.VK_ENTER, '\n'));
-        }
-        catch (InterruptedException e) {
-            throw new RuntimeException(e);
-        }
+        paster = null;
+        
+        inputQueue.offer("");
+        keyQueue.offer(new KeyEvent(this, 0, 0, 0, KeyEvent.VK_ENTER, '\n'));
         
         running = false;
+        
+        scheduler.wake();
     }
     
     public Optional<Glyph.Rule> getRule(String name) {
-        return Optional.ofNullable(rules.get(name));
+        return screen.getRule(name);
     }
     
     public void addRules(Glyph.Rule... rules) {
-        for (var rule : rules) {
-            this.rules.put(rule.name(), rule);
-        }
+        screen.addRules(rules);
     }
     
     public boolean hasRule(String name) {
-        return rules.containsKey(name);
+        return screen.hasRule(name);
     }
     
     public void removeRules(String... names) {
-        for (var name : names) {
-            rules.remove(name);
-        }
+        screen.removeRules(names);
     }
     
     public void clearRules() {
-        rules.clear();
+        screen.clearRules();
+    }
+    
+    public void addCompletionProvider(CompletionProvider provider) {
+        completionProviders.add(provider);
+    }
+    
+    public void removeCompletionProvider(CompletionProvider provider) {
+        completionProviders.remove(provider);
     }
     
     public void clear() {
-        outputLock.lock();
+        screen.clear();
         
-        try {
-            output.clear();
-            outputBuffer.clear();
-        }
-        finally {
-            outputLock.unlock();
-        }
+        scheduler.wake();
     }
     
     public KeyEvent readKey(boolean onPress) {
         try {
-            keyWaiting = true;
+            var since = System.nanoTime();
+            
+            screen.setKeyWaiting(true);
             
             keyOnPress = onPress;
             
+            scheduler.wake();
+            
+            // Keys left over from an earlier read are older than this one and skipped
             var key = keyQueue.take();
             
-            keyWaiting = false;
+            while (key.time() < since) {
+                key = keyQueue.take();
+            }
+            
+            screen.setKeyWaiting(false);
             
-            return key;
+            return key.value();
         }
         catch (InterruptedException e) {
             throw new RuntimeException(e);
@@ -222,15 +230,17 @@ public class Buffer extends Canvas implements Runnable, KeyListener, MouseWheelL
     public String readToken() {
         if (inputScanBuffer.isEmpty()) {
             try {
-                inputWaiting = true;
+                screen.setInputWaiting(true);
+                
+                scheduler.wake();
                 
-                var line = inputQueue.take();
+                var line = inputQueue.take().value();
                 
                 var tokens = line.split(inputDelimiter);
                 
                 inputScanBuffer.addAll(List.of(tokens));
                 
-                inputWaiting = false;
+                screen.setInputWaiting(false);
             }
             catch (InterruptedException e) {
                 throw new RuntimeException(e);
@@ -239,24 +249,22 @@ public class Buffer extends Canvas implements Runnable, KeyListener, MouseWheelL
         
         var token = inputScanBuffer.remove(0);
         
-        if (!token.isBlank() && (inputHistory.isEmpty() || !token.equals(inputHistory.get(0)))) {
-            inputHistory.add(0, token);
-        }
+        inputHistory.add(token);
         
         return token;
     }
     
     public String readLine() {
         try {
-            inputWaiting = true;
+            screen.setInputWaiting(true);
             
-            var line = inputQueue.take();
+            scheduler.wake();
             
-            inputWaiting = false;
+            var line = inputQueue.take().value();
             
-            if (!line.isBlank() && (inputHistory.isEmpty() || !line.equals(inputHistory.get(0)))) {
-                inputHistory.add(0, line);
-            }
+            screen.setInputWaiting(false);
+            
+            inputHistory.add(line);
             
             return line;
         }
@@ -266,64 +274,11 @@ public class Buffer extends Canvas implements Runnable, KeyListener, MouseWheelL
     }
     
     public void write(String string) {
-        var matches = getMatches(string);
-
-        try {
-            outputLock.lock();
-            
-            for (var i = 0; i < string.length(); i++) {
-                var c = string.charAt(i);
-                
-                var thisEffect = effect;
-                var thisInvert = inverted;
-
-rules:
-                for (var match : matches.entrySet()) {
-                    var rule = match.getKey();
-                    var ranges = match.getValue();
-                    
-                    for (var range : ranges) {
-                        if (!range.contains(i)) {
-                            continue;
-                        }
-                        
-                        thisEffect = rule.effect();
-                        thisInvert = rule.invert();
-                        
-                        break rules;
-                    }
-                }
-                
-                outputBuffer.add(new Glyph(c, thisInvert, thisEffect.copy()));
-            }
-        }
-        finally {
-            outputLock.unlock();
-        }
-    }
-
-    private HashMap<Glyph.Rule, List<Range>> getMatches(String string) {
-        var matches = new HashMap<Glyph.Rule, List<Range>>();
-
-        if (rulesEnabled) {
-            for (var rule : rules.values()) {
-                var ranges = new ArrayList<Range>();
-
-                matches.put(rule, ranges);
-
-                var matcher = rule.regex().matcher(string);
-
-                while (matcher.find()) {
-                    var group = matcher.toMatchResult();
-
-                    ranges.add(new Range(group.start(), group.end()));
-                }
-            }
-        }
-
-        return matches;
+        screen.write(string);
+        
+        scheduler.wake();
     }
-
+    
     @Override
     public void run() {
         var npu = 1E9 / frameRate;
@@ -336,6 +291,8 @@ rules:
         var updates = 0;
         var frames = 0;
         
+        var idle = false;
+        
         running = true;
         
         while (running) {
@@ -348,8 +305,20 @@ rules:
             
             var changed = false;
             
-            while (delta >= 1.0) {
-                update(delta--);
+            if (idle) {
+                // Nothing moved while parked, so the time spent idle collapses into a single update
+                if (delta >= 1.0) {
+                    screen.update(delta);
+                    
+                    delta = 0.0;
+                    
+                    updates++;
+                    
+                    changed = true;
+                }
+            }
+            else while (delta >= 1.0) {
+                screen.update(delta--);
                 
                 updates++;
                 
@@ -372,30 +341,28 @@ rules:
                 
                 timer -= frameRate;
             }
-        }
-    }
-    
-    private void update(double delta) {
-        output.forEach(glyph -> glyph.update(delta));
-        
-        if (inputWaiting) {
-            input.forEach(glyph -> glyph.update(delta));
-        }
-
-        cursorBlinkTimer += delta / frameRate;
-        
-        if (cursorBlinkTimer >= cursorSpeed) {
-            cursorVisible = isWaiting() && !cursorVisible;
             
-            cursorBlinkTimer -= cursorSpeed;
+            var idleTime = screen.getIdleTime();
+            
+            idle = idleTime > 0.0;
+            
+            if (!idle) {
+                scheduler.park((long) ((1.0 - delta) * npu));
+            }
+            else if (Double.isInfinite(idleTime)) {
+                scheduler.park(-1);
+            }
+            else {
+                scheduler.park((long) max((1.0 - delta) * npu, idleTime * 1E9));
+            }
         }
         
-        scrollOffset += (scrollTarget - scrollOffset) * scrollSpeed;
+        screen.close();
     }
     
     @SuppressWarnings("SuspiciousNameCombination")
     private void render() {
-        renderRaster();
+        var image = screen.render();
         
         if (getBufferStrategy() == null) {
             createBufferStrategy(3);
@@ -409,159 +376,55 @@ rules:
         
         graphics.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
         
+        var lineCount = screen.getLineCount();
+        var linesOnScreen = screen.getLinesOnScreen();
+        
         var scrollBarMargin = scrollBarWidth / 2;
         var scrollBarMaxHeight = getHeight() - scrollBarMargin * 2;
-        var scrollBarHeight = (int) (scrollBarMaxHeight * ((double) getLinesOnScreen() / max(getLineCount(), getLinesOnScreen())));
+        var scrollBarHeight = (int) (scrollBarMaxHeight * ((double) linesOnScreen / max(lineCount, linesOnScreen)));
         var sbX = getWidth() - scrollBarWidth - scrollBarMargin;
-        var sbY = (int) (scrollBarMargin + (scrollBarMaxHeight - scrollBarHeight) * (scrollOffset / (getLineCount() - getLinesOnScreen())));
+        var sbY = (int) (scrollBarMargin + (scrollBarMaxHeight - scrollBarHeight) * (screen.getScrollOffset() / (lineCount - linesOnScreen)));
         
         graphics.fillRoundRect(sbX, sbY, scrollBarWidth, scrollBarHeight, scrollBarWidth, scrollBarWidth);
         
+        if (isPasting()) {
+            graphics.fillRect(0, getHeight() - 2, (int) (getWidth() * pasteProgress), 2);
+        }
+        
         graphics.dispose();
         
         getBufferStrategy().show();
     }
     
-    @SuppressWarnings("WhileLoopReplaceableByForEach")
-    private void renderRaster() {
-        raster.clear(background);
-        
-        var ox = xSpace;
-        var oy = ySpace - (int) (scrollOffset * (font.getHeight() + ySpace));
+    private void poll() {
+        Completion request = null;
         
         try {
-            outputLock.lock();
+            inputLock.lock();
+            
+            var inputIndex = screen.getInputIndex();
+            var inputEdited = !inputBuffer.isEmpty();
             
-            var iterator = output.iterator();
+            // Printable glyphs are inserted a run at a time, so draining stays linear in the batch
+            var run = 0;
             
-            while (iterator.hasNext()) {
-                var glyph = iterator.next();
+            for (var i = 0; i < inputBuffer.size(); i++) {
+                var glyph = inputBuffer.get(i);
                 
                 var c = glyph.getChar();
-                var invert = glyph.isInverted();
-                var color = glyph.getColor();
-                var jx = glyph.getOffsetX();
-                var jy = glyph.getOffsetY();
                 
-                switch (c) {
-                    case '\t' -> {
-                        var info = font.get(' ');
-                        
-                        ox += (info.width() + xSpace) * tabSize;
-                        
-                        continue;
-                    }
+                if (!Character.isISOControl(c)) {
+                    run++;
                     
-                    case '\n' -> {
-                        ox = xSpace;
-                        oy += font.getHeight() + ySpace;
-                        
-                        continue;
-                    }
-                }
-                
-                var gx = ox + jx;
-                var gy = oy + jy;
-                
-                var info = font.get(c);
-                
-                var width = info.width();
-                var values = info.values();
-                
-                for (var y = 0; y < font.getHeight(); y++) {
-                    for (var x = 0; x < width; x++) {
-                        var px = gx + x;
-                        var py = gy + y;
-                        
-                        var value = values[x + y * width];
-                        
-                        var alpha = (invert) ? 1.0 - value : value;
-                        
-                        raster.put(px, py, color, alpha);
-                    }
-                }
-                
-                ox += width + xSpace;
-            }
-        }
-        finally {
-            outputLock.unlock();
-        }
-        
-        if (inputWaiting) {
-            for (var i = 0; i < input.size(); i++) {
-                var glyph = input.get(i);
-                
-                var c = glyph.getChar();
-                var invert = glyph.isInverted();
-                var color = glyph.getColor();
-                var jx = glyph.getOffsetX();
-                var jy = glyph.getOffsetY();
-                
-                var gx = ox + jx;
-                var gy = oy + jy;
-                
-                var info = font.get(c);
-                
-                var width = info.width();
-                var values = info.values();
-                
-                for (var y = 0; y < font.getHeight(); y++) {
-                    for (var x = 0; x < width; x++) {
-                        var px = gx + x;
-                        var py = gy + y;
-                        
-                        var value = values[x + y * width];
-                        
-                        var alpha = (invert || (i == inputIndex && cursorVisible)) ? 1.0 - value : value;
-                        
-                        raster.put(px, py, color, alpha);
-                    }
+                    continue;
                 }
                 
-                ox += width + xSpace;
-            }
-            
-            if ((input.isEmpty() || (inputIndex < 0 || input.size() <= inputIndex)) && cursorVisible) {
-                var info = font.get(' ');
+                input.insert(inputIndex, inputBuffer.subList(i - run, i));
                 
-                var width = info.width();
+                inputIndex += run;
+                run = 0;
                 
-                raster.invertRect(ox, oy, width, font.getHeight());
-            }
-        }
-        
-        if (keyWaiting && cursorVisible) {
-            var info = font.get('A');
-            
-            var width = info.width();
-            var values = info.values();
-            
-            for (var y = 0; y < font.getHeight(); y++) {
-                for (var x = 0; x < width; x++) {
-                    var px = ox + x;
-                    var py = oy + y;
-                    
-                    var alpha = 1.0 - values[x + y * width];
-                    
-                    raster.put(px, py, foreground, alpha);
-                }
-            }
-        }
-    }
-    
-    private void poll() {
-        try {
-            inputLock.lock();
-            
-            var iterator = inputBuffer.iterator();
-            
-            while (iterator.hasNext()) {
-                var glyph = iterator.next();
-                
-                var c = glyph.getChar();
-                
-                if (Character.isISOControl(c)) switch (c) {
+                switch (c) {
                     case '\b' -> {
                         if (0 <= inputIndex - 1 && inputIndex - 1 < input.size()) {
                             input.remove(inputIndex-- - 1);
@@ -579,142 +442,431 @@ rules:
                             beep();
                         }
                     }
+                    
+                    // Only pasted text carries newlines, each one submits the line before it
+                    case '\n' -> {
+                        submit();
+                        
+                        inputIndex = 0;
+                    }
                 }
-                else {
-                    input.add(inputIndex++, glyph);
-                }
+            }
+            
+            input.insert(inputIndex, inputBuffer.subList(inputBuffer.size() - run, inputBuffer.size()));
+            
+            inputIndex += run;
+            
+            inputBuffer.clear();
+            
+            if (inputEdited) {
+                screen.setInputIndex(inputIndex);
+            }
+            
+            if (completionRequested) {
+                completionRequested = false;
                 
-                iterator.remove();
+                request = prepareCompletion();
+            }
+            
+            var completion = this.completion.getAndSet(null);
+            
+            if (completion != null) {
+                applyCompletion(completion);
             }
         }
         finally {
             inputLock.unlock();
         }
         
-        try {
-            outputLock.lock();
+        // Providers are asked without the lock, so a slow one never holds up typing
+        if (request != null) {
+            requestCompletion(request);
+        }
+        
+        screen.poll();
+    }
+    
+    private void submit() {
+        var line = input.getText();
+        
+        input.clear();
+        
+        screen.setInputIndex(0);
+        inputHistoryIndex = -1;
+        
+        screen.echo(line + '\n');
+        
+        inputQueue.offer(line);
+    }
+    
+    // Takes the token before the cursor, or steps to the next candidate and returns null
+    private Completion prepareCompletion() {
+        if (completionProviders.isEmpty()) {
+            return null;
+        }
+        
+        var end = max(min(screen.getInputIndex(), input.size()), 0);
+        var start = end;
+        
+        while (start > 0 && !Character.isWhitespace(input.get(start - 1).getChar())) {
+            start--;
+        }
+        
+        var token = getInputText(start, end);
+        
+        if (cycle != null && cycle.start() == start && token.equals(cycle.candidates().get(cycleIndex))) {
+            cycleIndex = (cycleIndex + 1) % cycle.candidates().size();
             
-            var iterator = outputBuffer.iterator();
+            replaceInput(start, end, cycle.candidates().get(cycleIndex));
             
-            var outputWritten = iterator.hasNext();
+            return null;
+        }
+        
+        cycle = null;
+        
+        return new Completion(start, token, List.of());
+    }
+    
+    private void requestCompletion(Completion request) {
+        var token = request.token();
+        
+        var futures = completionProviders
+            .stream()
+            .map(provider -> provider
+                .completeAsync(token, completionLimit)
+                .completeOnTimeout(List.of(), completionBudget, TimeUnit.MILLISECONDS)
+                .exceptionally(e -> List.of()))
+            .toList();
+        
+        CompletableFuture.allOf(futures.toArray(CompletableFuture[]::new)).thenRun(() -> {
+            // Earlier providers rank first, a word offered twice keeps its first place
+            var candidates = futures
+                .stream()
+                .flatMap(future -> future.join().stream())
+                .distinct()
+                .limit(completionLimit)
+                .toList();
             
-            while (iterator.hasNext()) {
-                var glyph = iterator.next();
-                
-                output.add(glyph);
-                
-                iterator.remove();
-            }
+            completion.set(new Completion(request.start(), token, candidates));
+            
+            scheduler.wake();
+        });
+    }
+    
+    // Results for a token that has since been edited are dropped
+    private void applyCompletion(Completion completion) {
+        var start = completion.start();
+        var end = start + completion.token().length();
+        
+        if (screen.getInputIndex() != end || end > input.size() || !getInputText(start, end).equals(completion.token())) {
+            return;
+        }
+        
+        var candidates = completion.candidates();
+        
+        if (candidates.isEmpty()) {
+            beep();
+            
+            return;
+        }
+        
+        if (candidates.size() == 1) {
+            replaceInput(start, end, candidates.get(0));
+            
+            return;
+        }
+        
+        var common = candidates.get(0);
+        
+        for (var candidate : candidates) {
+            var length = 0;
             
-            if (outputWritten) {
-                end();
+            while (length < min(common.length(), candidate.length()) && common.charAt(length) == candidate.charAt(length)) {
+                length++;
             }
+            
+            common = common.substring(0, length);
         }
-        finally {
-            outputLock.unlock();
+        
+        if (common.length() > completion.token().length()) {
+            replaceInput(start, end, common);
+        }
+        else {
+            cycle = completion;
+            cycleIndex = 0;
+            
+            replaceInput(start, end, candidates.get(0));
         }
     }
     
-    private void blinkCursor() {
-        cursorBlinkTimer = 0;
+    private String getInputText(int start, int end) {
+        var text = new StringBuilder(end - start);
         
-        cursorVisible = true;
+        for (var i = start; i < end; i++) {
+            text.append(input.get(i).getChar());
+        }
+        
+        return text.toString();
     }
     
-    private void beep() {
-        Toolkit.getDefaultToolkit().beep();
+    private void replaceInput(int start, int end, String text) {
+        for (var i = start; i < end; i++) {
+            input.remove(start);
+        }
+        
+        input.insert(start, Glyph.toGlyphs(text, screen.isInverted(), screen.getEffect()));
+        
+        screen.setInputIndex(start + text.length());
+        screen.blinkCursor();
     }
     
-    private void scroll(int amount) {
-        scrollTarget = max(0, min(scrollTarget + amount, getLineCount() - getLinesOnScreen()));
+    private void showHistory(int n) {
+        screen.end();
+        
+        inputBuffer.clear();
+        input.clear();
+        screen.setInputIndex(0);
+        
+        inputBuffer.addAll(Glyph.toGlyphs(inputHistory.get(n), screen.isInverted(), screen.getEffect()));
+        
+        screen.blinkCursor();
     }
     
-    private void pageUp() {
-        scroll(-getLinesOnScreen());
+    // Shows the newest line at or before the given one that contains the query
+    private void search(int from) {
+        var found = inputHistory.search(searchQuery.toString(), from);
+        
+        if (found >= 0) {
+            searchIndex = found;
+            
+            showHistory(found);
+        }
+        else {
+            beep();
+        }
+        
+        screen.setInputPrefix("(search: %s) ".formatted(searchQuery));
     }
     
-    private void pageDown() {
-        scroll(getLinesOnScreen());
+    private void endSearch() {
+        if (searchIndex >= 0) {
+            inputHistoryIndex = searchIndex;
+        }
+        
+        searchQuery = null;
+        
+        screen.setInputPrefix("");
     }
     
-    private void home() {
-        scroll(-getLineCount());
+    private void paste() {
+        if (isPasting()) {
+            beep();
+            
+            return;
+        }
+        
+        var thread = new Thread(this::runPaste);
+        
+        thread.setDaemon(true);
+        
+        paster = thread;
+        
+        thread.start();
     }
     
-    private void end() {
-        scroll(getLineCount());
+    private void runPaste() {
+        var inverted = screen.isInverted();
+        var effect = screen.getEffect();
+        
+        try {
+            var text = ((String) Toolkit.getDefaultToolkit().getSystemClipboard().getData(DataFlavor.stringFlavor))
+                .replace("\r\n", "\n")
+                .replace('\r', '\n');
+            
+            if (text.length() > pasteLimit) {
+                text = text.substring(0, pasteLimit);
+                
+                beep();
+            }
+            
+            var from = 0;
+            
+            while (from < text.length()) {
+                // A chunk never submits more lines than the queue can hold
+                var to = from;
+                var end = min(from + pasteChunk, text.length());
+                var lines = 0;
+                
+                while (to < end) {
+                    if (text.charAt(to++) == '\n' && ++lines == inputQueue.getCapacity()) {
+                        break;
+                    }
+                }
+                
+                if (!awaitPaste(lines)) {
+                    return;
+                }
+                
+                try {
+                    inputLock.lock();
+                    
+                    inputBuffer.addAll(Glyph.toGlyphs(text.substring(from, to), inverted, effect));
+                }
+                finally {
+                    inputLock.unlock();
+                }
+                
+                screen.blinkCursor();
+                
+                from = to;
+                
+                pasteProgress = (double) from / text.length();
+                
+                scheduler.wake();
+            }
+        }
+        catch (UnsupportedFlavorException | IOException e) {
+            throw new RuntimeException(e);
+        }
+        finally {
+            if (paster == Thread.currentThread()) {
+                paster = null;
+            }
+            
+            pasteProgress = 0.0;
+            
+            scheduler.wake();
+        }
     }
     
-    @Override
-    public void keyTyped(KeyEvent e) {
-        if (inputWaiting) {
-            inputBuffer.add(new Glyph(e.getKeyChar(), inverted, effect.copy()));
+    // Waits for the last chunk to be drained and for room in the queue, returns false when the paste was cancelled
+    private boolean awaitPaste(int lines) {
+        while (paster == Thread.currentThread()) {
+            boolean drained;
+            
+            try {
+                inputLock.lock();
+                
+                drained = inputBuffer.isEmpty();
+            }
+            finally {
+                inputLock.unlock();
+            }
             
-            blinkCursor();
+            if (drained && inputQueue.size() + lines <= inputQueue.getCapacity()) {
+                return true;
+            }
+            
+            LockSupport.parkNanos((long) (1E9 / frameRate));
         }
+        
+        return false;
+    }
+    
+    private void beep() {
+        Toolkit.getDefaultToolkit().beep();
     }
     
     @Override
-    public void keyPressed(KeyEvent e) {
-        if (keyWaiting && keyOnPress) {
+    public void keyTyped(KeyEvent e) {
+        // Enter and tab are handled when they are pressed, a typed newline would submit the line again
+        if (screen.isInputWaiting() && e.getKeyChar() != '\n' && e.getKeyChar() != '\t') {
             try {
-                keyQueue.put(e);
+                inputLock.lock();
+                
+                var c = e.getKeyChar();
+                
+                if (searchQuery == null) {
+                    inputBuffer.add(new Glyph(c, screen.isInverted(), screen.getEffect()));
+                }
+                else if (c == '\b') {
+                    if (!searchQuery.isEmpty()) {
+                        searchQuery.setLength(searchQuery.length() - 1);
+                    }
+                    
+                    search(0);
+                }
+                else if (!Character.isISOControl(c)) {
+                    searchQuery.append(c);
+                    
+                    search(max(searchIndex, 0));
+                }
             }
-            catch (InterruptedException ex) {
-                throw new RuntimeException(ex);
+            finally {
+                inputLock.unlock();
             }
+            
+            screen.blinkCursor();
+            
+            scheduler.wake();
+        }
+    }
+    
+    @Override
+    public void keyPressed(KeyEvent e) {
+        if (screen.isKeyWaiting() && keyOnPress) {
+            keyQueue.offer(e);
+        }
+        
+        if (e.getKeyCode() == KeyEvent.VK_ESCAPE && isPasting()) {
+            paster = null;
+            
+            scheduler.wake();
+            
+            return;
         }
         
-        if (inputWaiting) {
+        if (screen.isInputWaiting()) {
             try {
                 inputLock.lock();
                 
+                screen.markInput();
+                
                 if (e.getKeyCode() == KeyEvent.VK_V && e.isControlDown()) {
-                    try {
-                        var text = (String) Toolkit.getDefaultToolkit().getSystemClipboard().getData(DataFlavor.stringFlavor);
-                        
-                        inputBuffer.addAll(Glyph.toGlyphs(text, inverted, effect));
+                    paste();
+                    
+                    return;
+                }
+                
+                if (e.getKeyCode() == KeyEvent.VK_R && e.isControlDown()) {
+                    if (searchQuery == null) {
+                        searchQuery = new StringBuilder();
+                        searchIndex = -1;
                         
-                        return;
+                        screen.setInputPrefix("(search: ) ");
+                    }
+                    else {
+                        search(searchIndex + 1);
                     }
-                    catch (UnsupportedFlavorException | IOException ex) {
-                        throw new RuntimeException(ex);
+                    
+                    return;
+                }
+                
+                // Typing refines the search, leaving, moving or submitting keeps the line found
+                if (searchQuery != null) {
+                    switch (e.getKeyCode()) {
+                        case KeyEvent.VK_ESCAPE -> {
+                            endSearch();
+                            
+                            return;
+                        }
+                        
+                        case KeyEvent.VK_ENTER, KeyEvent.VK_UP, KeyEvent.VK_DOWN, KeyEvent.VK_LEFT, KeyEvent.VK_RIGHT, KeyEvent.VK_HOME, KeyEvent.VK_END -> endSearch();
                     }
                 }
                 
                 switch (e.getKeyCode()) {
                     case KeyEvent.VK_ENTER -> {
-                        var line = input.stream().map(glyph -> String.valueOf(glyph.getChar())).collect(Collectors.joining());
-                        
                         inputBuffer.clear();
-                        input.clear();
-                        
-                        inputIndex = 0;
-                        inputHistoryIndex = -1;
                         
-                        write(line + '\n');
-                        
-                        try {
-                            inputQueue.put(line);
-                        }
-                        catch (InterruptedException ex) {
-                            throw new RuntimeException(ex);
-                        }
+                        submit();
                     }
                     
                     case KeyEvent.VK_UP -> {
-                        if (!inputHistory.isEmpty()) {
-                            end();
-                            
+                        if (inputHistory.size() > 0) {
                             inputHistoryIndex = min(inputHistoryIndex + 1, inputHistory.size() - 1);
                             
-                            inputBuffer.clear();
-                            input.clear();
-                            inputIndex = 0;
-                            
-                            inputBuffer.addAll(Glyph.toGlyphs(inputHistory.get(inputHistoryIndex), inverted, effect));
-                            
-                            blinkCursor();
+                            showHistory(inputHistoryIndex);
                         }
                         else {
                             beep();
@@ -722,60 +874,58 @@ rules:
                     }
                     
                     case KeyEvent.VK_DOWN -> {
-                        if (!inputHistory.isEmpty()) {
-                            end();
-                            
+                        if (inputHistory.size() > 0) {
                             inputHistoryIndex = max(inputHistoryIndex - 1, 0);
                             
-                            inputBuffer.clear();
-                            input.clear();
-                            inputIndex = 0;
-                            
-                            inputBuffer.addAll(Glyph.toGlyphs(inputHistory.get(inputHistoryIndex), inverted, effect));
-                            
-                            blinkCursor();
+                            showHistory(inputHistoryIndex);
                         }
                         else {
                             beep();
                         }
                     }
                     
-                    case KeyEvent.VK_PAGE_UP -> pageUp();
+                    case KeyEvent.VK_TAB -> {
+                        screen.end();
+                        
+                        completionRequested = true;
+                    }
                     
-                    case KeyEvent.VK_PAGE_DOWN -> pageDown();
+                    case KeyEvent.VK_PAGE_UP -> screen.pageUp();
+                    
+                    case KeyEvent.VK_PAGE_DOWN -> screen.pageDown();
                     
                     case KeyEvent.VK_HOME -> {
                         if (e.isControlDown()) {
-                            if (inputWaiting) {
-                                end();
+                            if (screen.isInputWaiting()) {
+                                screen.end();
                                 
-                                inputIndex = 0;
-                                blinkCursor();
+                                screen.setInputIndex(0);
+                                screen.blinkCursor();
                             }
                         }
                         else {
-                            home();
+                            screen.home();
                         }
                     }
                     
                     case KeyEvent.VK_END -> {
                         if (e.isControlDown()) {
-                            if (inputWaiting) {
-                                end();
+                            if (screen.isInputWaiting()) {
+                                screen.end();
                                 
-                                inputIndex = inputBuffer.size();
-                                blinkCursor();
+                                screen.setInputIndex(inputBuffer.size());
+                                screen.blinkCursor();
                             }
                         }
                         else {
-                            end();
+                            screen.end();
                         }
                     }
                     
                     case KeyEvent.VK_LEFT -> {
-                        end();
+                        screen.end();
                         
-                        inputIndex = max(inputIndex - 1, 0);
+                        var inputIndex = max(screen.getInputIndex() - 1, 0);
                         
                         if (e.isControlDown()) {
                             while (inputIndex > 0 && input.get(inputIndex - 1).getChar() != ' ') {
@@ -783,13 +933,15 @@ rules:
                             }
                         }
                         
-                        blinkCursor();
+                        screen.setInputIndex(inputIndex);
+                        
+                        screen.blinkCursor();
                     }
                     
                     case KeyEvent.VK_RIGHT -> {
-                        end();
+                        screen.end();
                         
-                        inputIndex = min(inputIndex + 1, input.size());
+                        var inputIndex = min(screen.getInputIndex() + 1, input.size());
                         
                         if (e.isControlDown()) {
                             while (inputIndex < input.size() && input.get(inputIndex - 1).getChar() != ' ') {
@@ -797,51 +949,49 @@ rules:
                             }
                         }
                         
-                        blinkCursor();
+                        screen.setInputIndex(inputIndex);
+                        
+                        screen.blinkCursor();
                     }
                     
                     case KeyEvent.VK_ESCAPE -> {
-                        end();
+                        screen.end();
                         
                         inputHistoryIndex = -1;
                         
                         input.clear();
                         inputBuffer.clear();
                         
-                        inputIndex = 0;
+                        screen.setInputIndex(0);
                         
-                        blinkCursor();
+                        screen.blinkCursor();
                     }
                     
-                    default -> end();
+                    default -> screen.end();
                 }
             }
             finally {
                 inputLock.unlock();
+                
+                scheduler.wake();
             }
         }
     }
     
     @Override
     public void keyReleased(KeyEvent e) {
-        if (keyWaiting && !keyOnPress) {
-            try {
-                keyQueue.put(e);
-            }
-            catch (InterruptedException ex) {
-                throw new RuntimeException(ex);
-            }
+        if (screen.isKeyWaiting() && !keyOnPress) {
+            keyQueue.offer(e);
         }
     }
     
     @Override
     public void mouseWheelMoved(MouseWheelEvent e) {
-        scroll(e.getWheelRotation() * scrollAmount);
+        screen.scroll(e.getWheelRotation() * scrollAmount);
+        
+        scheduler.wake();
     }
     
-    private record Range(int start, int end) {
-        public boolean contains(int i) {
-            return start <= i && i < end;
-        }
+    private record Completion(int start, String token, List<String> candidates) {
     }
 }
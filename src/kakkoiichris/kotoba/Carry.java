@@ -0,0 +1,121 @@
+package kakkoiichris.kotoba;
+
+import java.util.Arrays;
+
+import static java.lang.Math.max;
+
+public class Carry {
+    public static final Carry EMPTY = new Carry("", new Glyph.Rule[0], 0, 0, new int[0], new Glyph.Effect[0], new boolean[0]);
+    
+    // The end of the current line as it was written and the rule that styled each character, usually shared with the write it came from
+    private final String source;
+    private final Glyph.Rule[] rules;
+    private final int offset;
+    private final int length;
+    
+    // The style each character had before rules, as runs since a line is mostly written in one style
+    private final int[] runStarts;
+    private final Glyph.Effect[] runEffects;
+    private final boolean[] runInverts;
+    
+    private Carry(String source, Glyph.Rule[] rules, int offset, int length, int[] runStarts, Glyph.Effect[] runEffects, boolean[] runInverts) {
+        this.source = source;
+        this.rules = rules;
+        this.offset = offset;
+        this.length = length;
+        this.runStarts = runStarts;
+        this.runEffects = runEffects;
+        this.runInverts = runInverts;
+    }
+    
+    public int length() {
+        return length;
+    }
+    
+    // The carried text with the string after it, copied once
+    public String followedBy(String string) {
+        return new StringBuilder(length + string.length()).append(source, offset, offset + length).append(string).toString();
+    }
+    
+    public Glyph.Effect getEffect(int i) {
+        return runEffects[getRun(i)];
+    }
+    
+    public boolean isInverted(int i) {
+        return runInverts[getRun(i)];
+    }
+    
+    public Glyph.Rule getRule(int i) {
+        return rules[offset + i];
+    }
+    
+    private static boolean isWord(char c) {
+        return Character.isLetterOrDigit(c) || c == '_';
+    }
+    
+    private int getRun(int i) {
+        var run = Arrays.binarySearch(runStarts, i);
+        
+        return (run >= 0) ? run : -run - 2;
+    }
+    
+    // Keeps the last reach characters after the final newline of the text, which is this carry followed by the new string, but never more than the window
+    public Carry next(String text, Glyph.Rule[] matches, Glyph.Effect effect, boolean inverted, int window, int reach) {
+        var floor = max(text.lastIndexOf('\n') + 1, text.length() - window);
+        
+        var start = max(floor, text.length() - reach);
+        
+        if (start >= text.length()) {
+            return EMPTY;
+        }
+        
+        // Matched again, the carry has to start where the full line would have no match running across it and a word boundary means the same
+        while (start > floor && (isWord(text.charAt(start - 1)) || (matches[start] != null && matches[start - 1] != null))) {
+            start--;
+        }
+        
+        var first = (start < length) ? getRun(start) : runStarts.length;
+        var kept = runStarts.length - first;
+        
+        // The new string continues the last carried run when it has the same style
+        var last = runStarts.length - 1;
+        var added = length < text.length() && (kept == 0 || runInverts[last] != inverted || !runEffects[last].equals(effect));
+        
+        var count = kept + ((added) ? 1 : 0);
+        
+        int[] starts;
+        Glyph.Effect[] effects;
+        boolean[] inverts;
+        
+        // Runs that come out the same, as they do while a line is written in one style, are shared
+        if (!added && count == runStarts.length && (start == 0 || count == 1)) {
+            starts = runStarts;
+            effects = runEffects;
+            inverts = runInverts;
+        }
+        else {
+            starts = new int[count];
+            effects = new Glyph.Effect[count];
+            inverts = new boolean[count];
+            
+            for (var run = first; run < runStarts.length; run++) {
+                starts[run - first] = max(runStarts[run] - start, 0);
+                effects[run - first] = runEffects[run];
+                inverts[run - first] = runInverts[run];
+            }
+            
+            if (added) {
+                starts[kept] = max(length - start, 0);
+                effects[kept] = effect;
+                inverts[kept] = inverted;
+            }
+        }
+        
+        // A short carry out of a long write takes a copy of its end, so it does not hold on to the whole write
+        if ((text.length() - start) * 4 < text.length()) {
+            return new Carry(text.substring(start), Arrays.copyOfRange(matches, start, text.length()), 0, text.length() - start, starts, effects, inverts);
+        }
+        
+        return new Carry(text, matches, start, text.length() - start, starts, effects, inverts);
+    }
+}
@@ -0,0 +1,14 @@
+package kakkoiichris.kotoba;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+public interface CompletionProvider {
+    // Words that can replace the prefix, best first, at most limit of them
+    List<String> complete(String prefix, int limit);
+    
+    // Runs off the loop thread, so even a slow provider only loses its answer once the completion budget runs out
+    default CompletableFuture<List<String>> completeAsync(String prefix, int limit) {
+        return CompletableFuture.supplyAsync(() -> complete(prefix, limit));
+    }
+}
@@ -6,6 +6,7 @@ import java.awt.event.KeyEvent;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
 import java.io.IOException;
+import java.nio.file.Path;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.Stack;
@@ -92,6 +93,18 @@ public class Console {
         buffer.setRulesEnabled(rulesEnabled);
     }
     
+    public long getPending() {
+        return buffer.getPending();
+    }
+    
+    public boolean isPasting() {
+        return buffer.isPasting();
+    }
+    
+    public double getPasteProgress() {
+        return buffer.getPasteProgress();
+    }
+    
     public String getPrompt() {
         return prompt;
     }
@@ -164,6 +177,14 @@ public class Console {
         buffer.clearRules();
     }
     
+    public void addCompletionProvider(CompletionProvider provider) {
+        buffer.addCompletionProvider(provider);
+    }
+    
+    public void removeCompletionProvider(CompletionProvider provider) {
+        buffer.removeCompletionProvider(provider);
+    }
+    
     public void clear() {
         if (closed) {
             return;
@@ -321,6 +342,23 @@ public class Console {
         private double cursorSpeed = 0.5;
         private String inputDelimiter = " ";
         private String prompt = "";
+        private int glyphCacheSize = 4096;
+        private int scrollbackLines = 0;
+        private int scrollbackGlyphs = 0;
+        private int spillGlyphs = 0;
+        private int ruleWindow = 256;
+        private int matchCacheSize = 256;
+        private int matchCacheLength = 256;
+        private int outputLimit = 0;
+        private Backpressure backpressure = Backpressure.BLOCK;
+        private int eventCapacity = 64;
+        private EventRing.Overflow eventOverflow = EventRing.Overflow.DROP_OLDEST;
+        private int pasteLimit = 1 << 23;
+        private int pasteChunk = 4096;
+        private int historySize = 1000;
+        private Path historyFile = null;
+        private int completionLimit = 32;
+        private int completionBudget = 50;
         
         public Config() {
             try {
@@ -483,5 +521,158 @@ public class Console {
             this.prompt = prompt;
             return this;
         }
+        
+        public int getGlyphCacheSize() {
+            return glyphCacheSize;
+        }
+        
+        public Config glyphCacheSize(int glyphCacheSize) {
+            this.glyphCacheSize = glyphCacheSize;
+            return this;
+        }
+        
+        public int getScrollbackLines() {
+            return scrollbackLines;
+        }
+        
+        public Config scrollbackLines(int scrollbackLines) {
+            this.scrollbackLines = scrollbackLines;
+            return this;
+        }
+        
+        public int getScrollbackGlyphs() {
+            return scrollbackGlyphs;
+        }
+        
+        public Config scrollbackGlyphs(int scrollbackGlyphs) {
+            this.scrollbackGlyphs = scrollbackGlyphs;
+            return this;
+        }
+        
+        public int getSpillGlyphs() {
+            return spillGlyphs;
+        }
+        
+        public Config spillGlyphs(int spillGlyphs) {
+            this.spillGlyphs = spillGlyphs;
+            return this;
+        }
+        
+        public int getRuleWindow() {
+            return ruleWindow;
+        }
+        
+        public Config ruleWindow(int ruleWindow) {
+            this.ruleWindow = ruleWindow;
+            return this;
+        }
+        
+        public int getMatchCacheSize() {
+            return matchCacheSize;
+        }
+        
+        public Config matchCacheSize(int matchCacheSize) {
+            this.matchCacheSize = matchCacheSize;
+            return this;
+        }
+        
+        public int getMatchCacheLength() {
+            return matchCacheLength;
+        }
+        
+        public Config matchCacheLength(int matchCacheLength) {
+            this.matchCacheLength = matchCacheLength;
+            return this;
+        }
+        
+        public int getOutputLimit() {
+            return outputLimit;
+        }
+        
+        public Config outputLimit(int outputLimit) {
+            this.outputLimit = outputLimit;
+            return this;
+        }
+        
+        public Backpressure getBackpressure() {
+            return backpressure;
+        }
+        
+        public Config backpressure(Backpressure backpressure) {
+            this.backpressure = backpressure;
+            return this;
+        }
+        
+        public int getEventCapacity() {
+            return eventCapacity;
+        }
+        
+        public Config eventCapacity(int eventCapacity) {
+            this.eventCapacity = eventCapacity;
+            return this;
+        }
+        
+        public EventRing.Overflow getEventOverflow() {
+            return eventOverflow;
+        }
+        
+        public Config eventOverflow(EventRing.Overflow eventOverflow) {
+            this.eventOverflow = eventOverflow;
+            return this;
+        }
+        
+        public int getPasteLimit() {
+            return pasteLimit;
+        }
+        
+        public Config pasteLimit(int pasteLimit) {
+            this.pasteLimit = pasteLimit;
+            return this;
+        }
+        
+        public int getPasteChunk() {
+            return pasteChunk;
+        }
+        
+        public Config pasteChunk(int pasteChunk) {
+            this.pasteChunk = pasteChunk;
+            return this;
+        }
+        
+        public int getHistorySize() {
+            return historySize;
+        }
+        
+        public Config historySize(int historySize) {
+            this.historySize = historySize;
+            return this;
+        }
+        
+        public Path getHistoryFile() {
+            return historyFile;
+        }
+        
+        public Config historyFile(Path historyFile) {
+            this.historyFile = historyFile;
+            return this;
+        }
+        
+        public int getCompletionLimit() {
+            return completionLimit;
+        }
+        
+        public Config completionLimit(int completionLimit) {
+            this.completionLimit = completionLimit;
+            return this;
+        }
+        
+        public int getCompletionBudget() {
+            return completionBudget;
+        }
+        
+        public Config completionBudget(int completionBudget) {
+            this.completionBudget = completionBudget;
+            return this;
+        }
     }
 }
@@ -0,0 +1,71 @@
+package kakkoiichris.kotoba;
+
+import java.util.BitSet;
+
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+
+public class Damage {
+    private final BitSet lines = new BitSet();
+    
+    private int from = Integer.MAX_VALUE;
+    private boolean all = true;
+    private boolean input = false;
+    
+    public synchronized void markAll() {
+        all = true;
+    }
+    
+    public synchronized void markLine(int line) {
+        if (line >= 0) {
+            lines.set(line);
+        }
+    }
+    
+    public synchronized void markLines(int start, int end) {
+        if (end > 0) {
+            lines.set(max(start, 0), end);
+        }
+    }
+    
+    public synchronized void markFrom(int line) {
+        from = min(from, max(line, 0));
+    }
+    
+    public synchronized void markInput() {
+        input = true;
+    }
+    
+    public synchronized boolean isClean() {
+        return !all && !input && lines.isEmpty() && from == Integer.MAX_VALUE;
+    }
+    
+    public synchronized BitSet take(int first, int last, int inputLine) {
+        var dirty = new BitSet();
+        
+        if (all) {
+            dirty.set(first, last + 1);
+        }
+        else {
+            for (var line = lines.nextSetBit(first); 0 <= line && line <= last; line = lines.nextSetBit(line + 1)) {
+                dirty.set(line);
+            }
+            
+            if (from <= last) {
+                dirty.set(max(from, first), last + 1);
+            }
+            
+            if (input && first <= inputLine && inputLine <= last) {
+                dirty.set(inputLine);
+            }
+        }
+        
+        lines.clear();
+        
+        from = Integer.MAX_VALUE;
+        all = false;
+        input = false;
+        
+        return dirty;
+    }
+}
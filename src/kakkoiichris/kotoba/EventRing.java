@@ -0,0 +1,148 @@
+package kakkoiichris.kotoba;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+public class EventRing<T> {
+    // What an offer does when the ring is full, it never waits
+    public enum Overflow {
+        DROP_OLDEST,
+        DROP_NEWEST
+    }
+    
+    public record Event<T>(T value, long time) {
+    }
+    
+    private final Overflow overflow;
+    
+    // Each slot's sequence says whose turn it is, a writer when it equals the position, a reader when it is one past
+    private final Object[] values;
+    private final long[] times;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    
+    private volatile Thread waiter = null;
+    
+    public EventRing(int capacity, Overflow overflow) {
+        this.overflow = overflow;
+        
+        var size = Integer.highestOneBit(Math.max(capacity - 1, 1)) << 1;
+        
+        values = new Object[size];
+        times = new long[size];
+        sequences = new AtomicLongArray(size);
+        mask = size - 1;
+        
+        for (var i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+    }
+    
+    public int size() {
+        return (int) Math.max(tail.get() - head.get(), 0);
+    }
+    
+    public int getCapacity() {
+        return mask + 1;
+    }
+    
+    public long getDropped() {
+        return dropped.get();
+    }
+    
+    // Adds the value stamped with the current time, returns false when it was dropped instead
+    public boolean offer(T value) {
+        var time = System.nanoTime();
+        
+        while (true) {
+            var position = tail.get();
+            var slot = (int) (position & mask);
+            var turn = sequences.get(slot) - position;
+            
+            if (turn == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    values[slot] = value;
+                    times[slot] = time;
+                    
+                    sequences.set(slot, position + 1);
+                    
+                    var waiter = this.waiter;
+                    
+                    if (waiter != null) {
+                        LockSupport.unpark(waiter);
+                    }
+                    
+                    return true;
+                }
+            }
+            else if (turn < 0) {
+                dropped.incrementAndGet();
+                
+                if (overflow == Overflow.DROP_NEWEST) {
+                    return false;
+                }
+                
+                poll();
+            }
+        }
+    }
+    
+    // Returns the oldest event, or null when the ring is empty
+    @SuppressWarnings("unchecked")
+    public Event<T> poll() {
+        while (true) {
+            var position = head.get();
+            var slot = (int) (position & mask);
+            var turn = sequences.get(slot) - (position + 1);
+            
+            if (turn == 0) {
+                if (head.compareAndSet(position, position + 1)) {
+                    var event = new Event<>((T) values[slot], times[slot]);
+                    
+                    values[slot] = null;
+                    
+                    sequences.set(slot, position + mask + 1);
+                    
+                    return event;
+                }
+            }
+            else if (turn < 0) {
+                return null;
+            }
+        }
+    }
+    
+    // Parks the calling thread until an event arrives
+    public Event<T> take() throws InterruptedException {
+        waiter = Thread.currentThread();
+        
+        try {
+            while (true) {
+                var event = poll();
+                
+                if (event != null) {
+                    return event;
+                }
+                
+                LockSupport.park(this);
+                
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+            }
+        }
+        finally {
+            waiter = null;
+        }
+    }
+    
+    public void clear() {
+        while (poll() != null) {
+        }
+    }
+}
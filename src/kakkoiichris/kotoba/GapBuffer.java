@@ -0,0 +1,136 @@
+package kakkoiichris.kotoba;
+
+import java.util.Arrays;
+import java.util.List;
+
+public class GapBuffer {
+    private static final int INITIAL_SIZE = 64;
+    
+    // Glyphs before the cursor sit at the front and the rest at the back, so edits at the cursor only touch the gap
+    private Glyph[] glyphs = new Glyph[INITIAL_SIZE];
+    private int gapStart = 0;
+    private int gapEnd = INITIAL_SIZE;
+    
+    private int animated = 0;
+    
+    public int size() {
+        return glyphs.length - (gapEnd - gapStart);
+    }
+    
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+    
+    public int getAnimatedCount() {
+        return animated;
+    }
+    
+    public Glyph get(int index) {
+        return glyphs[(index < gapStart) ? index : index + gapEnd - gapStart];
+    }
+    
+    public String getText() {
+        var text = new StringBuilder(size());
+        
+        for (var i = 0; i < gapStart; i++) {
+            text.append(glyphs[i].getChar());
+        }
+        
+        for (var i = gapEnd; i < glyphs.length; i++) {
+            text.append(glyphs[i].getChar());
+        }
+        
+        return text.toString();
+    }
+    
+    public void insert(int index, List<Glyph> glyphs) {
+        if (glyphs.isEmpty()) {
+            return;
+        }
+        
+        moveGap(index);
+        reserve(glyphs.size());
+        
+        for (var glyph : glyphs) {
+            insertAtGap(glyph);
+        }
+    }
+    
+    public void insert(int index, Glyph glyph) {
+        moveGap(index);
+        reserve(1);
+        
+        insertAtGap(glyph);
+    }
+    
+    public void remove(int index) {
+        moveGap(index);
+        
+        if (glyphs[gapEnd].getEffect().isAnimated()) {
+            animated--;
+        }
+        
+        glyphs[gapEnd++] = null;
+    }
+    
+    public void clear() {
+        if (glyphs.length > INITIAL_SIZE) {
+            glyphs = new Glyph[INITIAL_SIZE];
+        }
+        else {
+            Arrays.fill(glyphs, null);
+        }
+        
+        gapStart = 0;
+        gapEnd = glyphs.length;
+        
+        animated = 0;
+    }
+    
+    private void insertAtGap(Glyph glyph) {
+        if (glyph.getEffect().isAnimated()) {
+            animated++;
+        }
+        
+        glyphs[gapStart++] = glyph;
+    }
+    
+    private void moveGap(int index) {
+        if (index < gapStart) {
+            var count = gapStart - index;
+            
+            System.arraycopy(glyphs, index, glyphs, gapEnd - count, count);
+            Arrays.fill(glyphs, index, Math.min(gapStart, gapEnd - count), null);
+            
+            gapStart -= count;
+            gapEnd -= count;
+        }
+        else if (index > gapStart) {
+            var count = index - gapStart;
+            
+            System.arraycopy(glyphs, gapEnd, glyphs, gapStart, count);
+            Arrays.fill(glyphs, Math.max(gapEnd, index), gapEnd + count, null);
+            
+            gapStart += count;
+            gapEnd += count;
+        }
+    }
+    
+    private void reserve(int count) {
+        if (gapEnd - gapStart >= count) {
+            return;
+        }
+        
+        var size = size();
+        var length = Math.max(glyphs.length * 2, size + count);
+        var tail = glyphs.length - gapEnd;
+        
+        var grown = new Glyph[length];
+        
+        System.arraycopy(glyphs, 0, grown, 0, gapStart);
+        System.arraycopy(glyphs, gapEnd, grown, length - tail, tail);
+        
+        glyphs = grown;
+        gapEnd = length - tail;
+    }
+}
@@ -48,8 +48,18 @@ public class Glyph {
         return offsetY;
     }
     
-    public void update(double delta) {
-        effect.apply(this, delta);
+    public Effect getEffect() {
+        return effect;
+    }
+    
+    void load(int color, int offsetX, int offsetY) {
+        this.color = color;
+        this.offsetX = offsetX;
+        this.offsetY = offsetY;
+    }
+    
+    public void updateAt(double time) {
+        effect.applyAt(this, time);
     }
     
     public interface Effect {
@@ -57,9 +67,12 @@ public class Glyph {
             return new Multi(this, effect);
         }
         
-        void apply(Glyph glyph, double delta);
+        // Effects hold no state of their own, everything is derived from the time on the animation clock
+        void applyAt(Glyph glyph, double time);
         
-        Effect copy();
+        default boolean isAnimated() {
+            return true;
+        }
         
         class None implements Effect {
             private static None instance;
@@ -73,12 +86,12 @@ public class Glyph {
             }
             
             @Override
-            public void apply(Glyph glyph, double delta) {
+            public void applyAt(Glyph glyph, double time) {
             }
             
             @Override
-            public Effect copy() {
-                return this;
+            public boolean isAnimated() {
+                return false;
             }
         }
         
@@ -100,13 +113,13 @@ public class Glyph {
             }
             
             @Override
-            public void apply(Glyph glyph, double delta) {
+            public void applyAt(Glyph glyph, double time) {
                 glyph.color = rgb;
             }
             
             @Override
-            public Effect copy() {
-                return new Color(rgb);
+            public boolean isAnimated() {
+                return false;
             }
         }
         
@@ -114,23 +127,14 @@ public class Glyph {
             private final double speed;
             private final int[] colors;
             
-            private double i = 0.0;
-            
             public Cycle(double speed, int... colors) {
                 this.speed = speed;
                 this.colors = colors;
             }
             
             @Override
-            public void apply(Glyph glyph, double delta) {
-                glyph.color = colors[(int) i % colors.length];
-                
-                i += speed * delta;
-            }
-            
-            @Override
-            public Effect copy() {
-                return new Cycle(speed, colors);
+            public void applyAt(Glyph glyph, double time) {
+                glyph.color = colors[(int) (speed * time) % colors.length];
             }
         }
         
@@ -148,26 +152,17 @@ public class Glyph {
                 return instance;
             }
             
-            public void apply(Glyph glyph, double delta) {
+            public void applyAt(Glyph glyph, double time) {
                 glyph.color = (int) (Math.random() * 0xFFFFFF);
             }
-            
-            public Effect copy() {
-                return instance;
-            }
         }
         
         record Jitter(int x, int y) implements Effect {
             @Override
-            public void apply(Glyph glyph, double delta) {
+            public void applyAt(Glyph glyph, double time) {
                 glyph.offsetX = (int) (Math.random() * ((x * 2) + 1)) - x;
                 glyph.offsetY = (int) (Math.random() * ((y * 2) + 1)) - y;
             }
-            
-            @Override
-            public Effect copy() {
-                return new Jitter(x, y);
-            }
         }
         
         final class Wave implements Effect {
@@ -183,23 +178,16 @@ public class Glyph {
                 this.vertical = vertical;
             }
             
-            private double phase = 0.0;
-            
             @Override
-            public void apply(Glyph glyph, double delta) {
+            public void applyAt(Glyph glyph, double time) {
+                var phase = speed * time;
+                
                 if (vertical) {
                     glyph.offsetY = (int) (amplitude * sin(frequency * phase));
                 }
                 else {
                     glyph.offsetX = (int) (amplitude * sin(frequency * phase));
                 }
-                
-                phase += speed * delta;
-            }
-            
-            @Override
-            public Effect copy() {
-                return new Wave(amplitude, frequency, speed, vertical);
             }
         }
         
@@ -210,45 +198,57 @@ public class Glyph {
                 this.effects.addAll(List.of(effects));
             }
             
+            // Returns a new effect, since rules and the glyphs written with them share this one
             @Override
             public Multi and(Effect effect) {
-                if (effect instanceof Multi multi) {
-                    effects.addAll(multi.effects);
+                var multi = new Multi(effects.toArray(Effect[]::new));
+                
+                if (effect instanceof Multi other) {
+                    multi.effects.addAll(other.effects);
                 }
                 else {
-                    effects.add(effect);
+                    multi.effects.add(effect);
                 }
                 
-                return this;
+                return multi;
             }
             
             @Override
-            public void apply(Glyph glyph, double delta) {
-                effects.forEach(effect -> effect.apply(glyph, delta));
+            public void applyAt(Glyph glyph, double time) {
+                effects.forEach(effect -> effect.applyAt(glyph, time));
             }
             
             @Override
-            public Effect copy() {
-                return new Multi((Effect[]) effects.stream().map(Effect::copy).toArray());
+            public boolean isAnimated() {
+                return effects.stream().anyMatch(Effect::isAnimated);
             }
         }
     }
     
-    public record Rule(String name, Pattern regex, boolean invert, Effect effect) {
+    // Where matches overlap, the rule with the higher priority styles the text
+    public record Rule(String name, Pattern regex, boolean invert, Effect effect, int priority) {
+        public Rule(String name, Pattern regex, boolean invert, Effect effect) {
+            this(name, regex, invert, effect, 0);
+        }
+        
         public Rule withName(String name) {
-            return new Rule(name, regex, invert, effect);
+            return new Rule(name, regex, invert, effect, priority);
         }
         
         public Rule withRegex(Pattern regex) {
-            return new Rule(name, regex, invert, effect);
+            return new Rule(name, regex, invert, effect, priority);
         }
         
         public Rule withInvert(boolean invert) {
-            return new Rule(name, regex, invert, effect);
+            return new Rule(name, regex, invert, effect, priority);
         }
         
         public Rule withEffect(Effect effect) {
-            return new Rule(name, regex, invert, effect);
+            return new Rule(name, regex, invert, effect, priority);
+        }
+        
+        public Rule withPriority(int priority) {
+            return new Rule(name, regex, invert, effect, priority);
         }
     }
 }
@@ -0,0 +1,54 @@
+package kakkoiichris.kotoba;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static kakkoiichris.kotoba.util.ColorMath.blend;
+
+public class GlyphCache {
+    private final Font font;
+    private final int background;
+    
+    private final Map<Key, int[]> entries;
+    
+    public GlyphCache(Font font, int background, int capacity) {
+        this.font = font;
+        this.background = background;
+        
+        entries = new LinkedHashMap<>(16, 0.75F, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, int[]> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+    
+    public int[] get(char c, boolean inverted, int color) {
+        return entries.computeIfAbsent(new Key(c, inverted, color), this::bake);
+    }
+    
+    // Blends the glyph against the background once, the same way Raster.put would
+    private int[] bake(Key key) {
+        var info = font.get(key.c());
+        
+        var values = info.values();
+        var pixels = new int[values.length];
+        
+        for (var i = 0; i < values.length; i++) {
+            var alpha = (key.inverted()) ? 1.0 - values[i] : values[i];
+            
+            pixels[i] = switch ((int) (alpha * 2)) {
+                case 0 -> background;
+                
+                case 1 -> blend(key.color(), background, alpha);
+                
+                default -> key.color();
+            };
+        }
+        
+        return pixels;
+    }
+    
+    private record Key(char c, boolean inverted, int color) {
+    }
+}
@@ -0,0 +1,417 @@
+package kakkoiichris.kotoba;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class GlyphStore {
+    private static final int CHUNK_BITS = 12;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+    
+    // The oldest glyphs may live in the spill, the rest are in memory
+    private final Spill spill;
+    private int spilled = 0;
+    
+    // Ring of chunks, the first glyph in memory lives at index start of the first chunk
+    private char[][] chunks = new char[4][];
+    private int firstChunk = 0;
+    private int chunkCount = 0;
+    private int start = 0;
+    private int size = 0;
+    
+    // Glyphs removed from the front, which turns absolute positions into indices
+    private long evicted = 0;
+    
+    // Ring of style runs over the glyphs in memory, each holds its absolute start and its effect id and invert flag
+    private long[] runStarts = new long[64];
+    private int[] runStyles = new int[64];
+    private int runHead = 0;
+    private int runCount = 0;
+    private long runsEvicted = 0;
+    private int hint = 0;
+    
+    // Effects are stateless, so every run written with the same effect shares one id
+    private final List<Glyph.Effect> effects = new ArrayList<>();
+    private final Map<Glyph.Effect, Integer> effectIds = new HashMap<>();
+    private final Deque<Integer> freeEffectIds = new ArrayDeque<>();
+    private int[] effectRefs = new int[16];
+    
+    // Absolute numbers of the animated runs in memory, oldest first, static runs are never revisited
+    private long[] animated = new long[64];
+    private int animatedHead = 0;
+    private int animatedCount = 0;
+    
+    private final Glyph scratch = new Glyph(' ', false, Glyph.Effect.None.get());
+    
+    public GlyphStore(Spill spill) {
+        this.spill = spill;
+    }
+    
+    public GlyphStore() {
+        this(null);
+    }
+    
+    public int size() {
+        return size;
+    }
+    
+    public int getSpilled() {
+        return spilled;
+    }
+    
+    public int getRunCount() {
+        return runCount;
+    }
+    
+    public int getAnimatedCount() {
+        return animatedCount;
+    }
+    
+    public int getAnimated(int n) {
+        return (int) (animated[(animatedHead + n) & (animated.length - 1)] - runsEvicted);
+    }
+    
+    public void add(String text, boolean inverted, Glyph.Effect effect) {
+        if (text.isEmpty()) {
+            return;
+        }
+        
+        addRun(inverted, effect);
+        
+        var from = 0;
+        
+        while (from < text.length()) {
+            var p = position(size);
+            
+            if (p >> CHUNK_BITS == chunkCount) {
+                addChunk();
+            }
+            
+            var i = p & CHUNK_MASK;
+            var to = Math.min(text.length(), from + CHUNK_SIZE - i);
+            
+            text.getChars(from, to, chunks[(firstChunk + (p >> CHUNK_BITS)) & (chunks.length - 1)], i);
+            
+            size += to - from;
+            from = to;
+        }
+    }
+    
+    // Moves the oldest glyphs in memory to the spill, freezing their color at the given time
+    public void spill(int count, double time) {
+        count = Math.min(count, size - spilled);
+        
+        for (var index = spilled; index < spilled + count; index++) {
+            evaluate(index, scratch, time);
+            
+            spill.add(getChar(index), isInverted(index), scratch.getColor());
+        }
+        
+        removeFromMemory(count);
+        
+        spilled += count;
+        
+        dropRuns();
+    }
+    
+    // Takes back the newest glyphs in memory so they can be written again
+    public void removeLast(int count) {
+        count = Math.min(count, size - spilled);
+        
+        size -= count;
+        
+        while (runCount > 0 && runStart(runCount - 1) >= evicted + size) {
+            releaseEffect(runStyles[(runHead + runCount - 1) & (runStyles.length - 1)] >> 1);
+            
+            runCount--;
+        }
+        
+        hint = 0;
+        
+        while (animatedCount > 0 && animated[(animatedHead + animatedCount - 1) & (animated.length - 1)] >= runsEvicted + runCount) {
+            animatedCount--;
+        }
+    }
+    
+    public void removeFirst(int count) {
+        count = Math.min(count, size);
+        
+        var fromSpill = Math.min(count, spilled);
+        
+        if (fromSpill > 0) {
+            spill.removeFirst(fromSpill);
+            
+            spilled -= fromSpill;
+            size -= fromSpill;
+        }
+        
+        removeFromMemory(count - fromSpill);
+        
+        size -= count - fromSpill;
+        evicted += count;
+        
+        dropRuns();
+    }
+    
+    public void clear() {
+        if (spill != null) {
+            spill.clear();
+        }
+        
+        spilled = 0;
+        
+        Arrays.fill(chunks, null);
+        
+        firstChunk = 0;
+        chunkCount = 0;
+        start = 0;
+        size = 0;
+        evicted = 0;
+        
+        runHead = 0;
+        runCount = 0;
+        runsEvicted = 0;
+        hint = 0;
+        
+        effects.clear();
+        effectIds.clear();
+        freeEffectIds.clear();
+        Arrays.fill(effectRefs, 0);
+        
+        animatedHead = 0;
+        animatedCount = 0;
+    }
+    
+    public void close() {
+        if (spill != null) {
+            spill.close();
+        }
+    }
+    
+    public char getChar(int index) {
+        if (index < spilled) {
+            return spill.getChar(index);
+        }
+        
+        var p = position(index);
+        
+        return chunks[(firstChunk + (p >> CHUNK_BITS)) & (chunks.length - 1)][p & CHUNK_MASK];
+    }
+    
+    public boolean isInverted(int index) {
+        if (index < spilled) {
+            return spill.isInverted(index);
+        }
+        
+        return isRunInverted(findRun(index));
+    }
+    
+    public boolean isAnimated(int index) {
+        return index >= spilled && getRunEffect(findRun(index)).isAnimated();
+    }
+    
+    // Loads the color and offsets of the glyph at the given time, spilled glyphs keep the color they were frozen with
+    public void evaluate(int index, Glyph glyph, double time) {
+        if (index < spilled) {
+            glyph.load(spill.getColor(index), 0, 0);
+            
+            return;
+        }
+        
+        glyph.load(0, 0, 0);
+        
+        getRunEffect(findRun(index)).applyAt(glyph, time);
+    }
+    
+    public int findRun(int index) {
+        var position = evicted + index;
+        
+        if (hint >= runCount || runStart(hint) > position) {
+            hint = 0;
+        }
+        
+        // Glyphs are mostly read in order, so the next run is checked before searching
+        if (hint + 1 < runCount && runStart(hint + 1) <= position) {
+            hint++;
+            
+            if (hint + 1 < runCount && runStart(hint + 1) <= position) {
+                var low = hint + 1;
+                var high = runCount - 1;
+                
+                while (low < high) {
+                    var mid = (low + high + 1) >>> 1;
+                    
+                    if (runStart(mid) <= position) {
+                        low = mid;
+                    }
+                    else {
+                        high = mid - 1;
+                    }
+                }
+                
+                hint = low;
+            }
+        }
+        
+        return hint;
+    }
+    
+    public int getRunStart(int run) {
+        return (int) (Math.max(runStart(run), evicted + spilled) - evicted);
+    }
+    
+    public int getRunEnd(int run) {
+        return (run + 1 < runCount) ? (int) (runStart(run + 1) - evicted) : size;
+    }
+    
+    public boolean isRunInverted(int run) {
+        return (runStyles[(runHead + run) & (runStyles.length - 1)] & 1) != 0;
+    }
+    
+    public Glyph.Effect getRunEffect(int run) {
+        return effects.get(runStyles[(runHead + run) & (runStyles.length - 1)] >> 1);
+    }
+    
+    private long runStart(int run) {
+        return runStarts[(runHead + run) & (runStarts.length - 1)];
+    }
+    
+    private int position(int index) {
+        return start + index - spilled;
+    }
+    
+    private void addChunk() {
+        if (chunkCount == chunks.length) {
+            var grown = new char[chunks.length * 2][];
+            
+            for (var i = 0; i < chunkCount; i++) {
+                grown[i] = chunks[(firstChunk + i) & (chunks.length - 1)];
+            }
+            
+            chunks = grown;
+            firstChunk = 0;
+        }
+        
+        chunks[(firstChunk + chunkCount++) & (chunks.length - 1)] = new char[CHUNK_SIZE];
+    }
+    
+    // Continues the last run when the style matches, otherwise opens a new one at the end
+    private void addRun(boolean inverted, Glyph.Effect effect) {
+        if (runCount > 0 && getRunEffect(runCount - 1).equals(effect) && isRunInverted(runCount - 1) == inverted) {
+            return;
+        }
+        
+        if (runCount == runStarts.length) {
+            var grownStarts = new long[runStarts.length * 2];
+            var grownStyles = new int[runStyles.length * 2];
+            
+            for (var i = 0; i < runCount; i++) {
+                grownStarts[i] = runStarts[(runHead + i) & (runStarts.length - 1)];
+                grownStyles[i] = runStyles[(runHead + i) & (runStyles.length - 1)];
+            }
+            
+            runStarts = grownStarts;
+            runStyles = grownStyles;
+            runHead = 0;
+        }
+        
+        var run = (runHead + runCount) & (runStarts.length - 1);
+        
+        runStarts[run] = evicted + size;
+        runStyles[run] = (acquireEffect(effect) << 1) | ((inverted) ? 1 : 0);
+        
+        if (effect.isAnimated()) {
+            addAnimated(runsEvicted + runCount);
+        }
+        
+        runCount++;
+    }
+    
+    private void removeFromMemory(int count) {
+        start += count;
+        
+        while (start >= CHUNK_SIZE) {
+            chunks[firstChunk] = null;
+            
+            firstChunk = (firstChunk + 1) & (chunks.length - 1);
+            chunkCount--;
+            
+            start -= CHUNK_SIZE;
+        }
+    }
+    
+    // Forgets the runs whose glyphs were all spilled or removed
+    private void dropRuns() {
+        while (runCount > 0 && (runCount == 1 ? evicted + size : runStart(1)) <= evicted + spilled) {
+            releaseEffect(runStyles[runHead] >> 1);
+            
+            runHead = (runHead + 1) & (runStarts.length - 1);
+            runCount--;
+            runsEvicted++;
+        }
+        
+        hint = 0;
+        
+        while (animatedCount > 0 && animated[animatedHead] < runsEvicted) {
+            animatedHead = (animatedHead + 1) & (animated.length - 1);
+            animatedCount--;
+        }
+    }
+    
+    private void addAnimated(long run) {
+        if (animatedCount == animated.length) {
+            var grown = new long[animated.length * 2];
+            
+            for (var i = 0; i < animatedCount; i++) {
+                grown[i] = animated[(animatedHead + i) & (animated.length - 1)];
+            }
+            
+            animated = grown;
+            animatedHead = 0;
+        }
+        
+        animated[(animatedHead + animatedCount++) & (animated.length - 1)] = run;
+    }
+    
+    private int acquireEffect(Glyph.Effect effect) {
+        var id = effectIds.get(effect);
+        
+        if (id == null) {
+            if (freeEffectIds.isEmpty()) {
+                id = effects.size();
+                
+                effects.add(effect);
+                
+                if (id == effectRefs.length) {
+                    effectRefs = Arrays.copyOf(effectRefs, id * 2);
+                }
+            }
+            else {
+                id = freeEffectIds.pop();
+                
+                effects.set(id, effect);
+            }
+            
+            effectIds.put(effect, id);
+        }
+        
+        effectRefs[id]++;
+        
+        return id;
+    }
+    
+    private void releaseEffect(int id) {
+        if (--effectRefs[id] == 0) {
+            effectIds.remove(effects.get(id));
+            
+            effects.set(id, null);
+            
+            freeEffectIds.push(id);
+        }
+    }
+}
@@ -0,0 +1,251 @@
+package kakkoiichris.kotoba;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+public class History {
+    private final int capacity;
+    private final Path path;
+    
+    // Ring of submitted lines, numbered absolutely from the first ever added
+    private final String[] entries;
+    private long first = 0;
+    private long end = 0;
+    
+    // Numbers of the lines containing each trigram, oldest first, rebuilt once enough lines have been evicted
+    private final Map<Long, Postings> index = new HashMap<>();
+    private long indexedFrom = 0;
+    
+    private boolean loaded;
+    
+    // Lines in the file, which is rewritten with only the kept lines once it holds twice as many
+    private long fileLines = 0;
+    
+    public History(int capacity, Path path) {
+        this.capacity = Math.max(capacity, 1);
+        this.path = path;
+        
+        entries = new String[this.capacity];
+        
+        loaded = path == null;
+    }
+    
+    public synchronized int size() {
+        load();
+        
+        return (int) (end - first);
+    }
+    
+    // Lines are numbered back from the newest, which is zero
+    public synchronized String get(int n) {
+        load();
+        
+        return entries[slot(end - 1 - n)];
+    }
+    
+    public synchronized void add(String line) {
+        load();
+        
+        if (line.isBlank() || (end > first && line.equals(entries[slot(end - 1)]))) {
+            return;
+        }
+        
+        append(line);
+        
+        if (path != null) {
+            try {
+                Files.writeString(path, line + '\n', StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            }
+            catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            
+            if (++fileLines > 2L * capacity) {
+                compact();
+            }
+        }
+    }
+    
+    // Returns the number of the newest line at or before the given one that contains the query, or -1
+    public synchronized int search(String query, int from) {
+        load();
+        
+        var last = end - 1 - from;
+        
+        if (query.length() < 3) {
+            for (var number = last; number >= first; number--) {
+                if (entries[slot(number)].contains(query)) {
+                    return (int) (end - 1 - number);
+                }
+            }
+            
+            return -1;
+        }
+        
+        // Only lines holding the rarest trigram of the query can contain it
+        Postings rarest = null;
+        
+        for (var i = 0; i + 3 <= query.length(); i++) {
+            var postings = index.get(trigram(query, i));
+            
+            if (postings == null) {
+                return -1;
+            }
+            
+            if (rarest == null || postings.size < rarest.size) {
+                rarest = postings;
+            }
+        }
+        
+        for (var i = rarest.floor(last); i >= 0; i--) {
+            var number = rarest.numbers[i];
+            
+            if (number < first) {
+                break;
+            }
+            
+            if (entries[slot(number)].contains(query)) {
+                return (int) (end - 1 - number);
+            }
+        }
+        
+        return -1;
+    }
+    
+    // The file is only read the first time the history is used, keeping its newest lines
+    private void load() {
+        if (loaded) {
+            return;
+        }
+        
+        loaded = true;
+        
+        if (!Files.exists(path)) {
+            return;
+        }
+        
+        try (var lines = Files.lines(path, StandardCharsets.UTF_8)) {
+            lines.forEach(line -> {
+                fileLines++;
+                
+                if (!line.isBlank()) {
+                    append(line);
+                }
+            });
+        }
+        catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        
+        if (fileLines > capacity) {
+            compact();
+        }
+    }
+    
+    // Replaces the file with the lines still kept, so it never takes longer to load than a few rings' worth
+    private void compact() {
+        var kept = new ArrayList<String>();
+        
+        for (var number = first; number < end; number++) {
+            kept.add(entries[slot(number)]);
+        }
+        
+        try {
+            var temp = Files.createTempFile(path.toAbsolutePath().getParent(), "history", ".tmp");
+            
+            Files.write(temp, kept, StandardCharsets.UTF_8);
+            
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        
+        fileLines = kept.size();
+    }
+    
+    private void append(String line) {
+        if (end - first == capacity) {
+            first++;
+        }
+        
+        entries[slot(end)] = line;
+        
+        addToIndex(line, end);
+        
+        end++;
+        
+        if (first - indexedFrom > capacity) {
+            rebuildIndex();
+        }
+    }
+    
+    private void addToIndex(String line, long number) {
+        for (var i = 0; i + 3 <= line.length(); i++) {
+            index.computeIfAbsent(trigram(line, i), key -> new Postings()).add(number);
+        }
+    }
+    
+    private void rebuildIndex() {
+        index.clear();
+        
+        for (var number = first; number < end; number++) {
+            addToIndex(entries[slot(number)], number);
+        }
+        
+        indexedFrom = first;
+    }
+    
+    private int slot(long number) {
+        return (int) (number % capacity);
+    }
+    
+    private static long trigram(String string, int i) {
+        return ((long) string.charAt(i) << 32) | ((long) string.charAt(i + 1) << 16) | string.charAt(i + 2);
+    }
+    
+    private static class Postings {
+        private long[] numbers = new long[4];
+        private int size = 0;
+        
+        private void add(long number) {
+            // A line holding the same trigram twice is listed once
+            if (size > 0 && numbers[size - 1] == number) {
+                return;
+            }
+            
+            if (size == numbers.length) {
+                numbers = Arrays.copyOf(numbers, size * 2);
+            }
+            
+            numbers[size++] = number;
+        }
+        
+        // Index of the last number not after the given one, or -1
+        private int floor(long number) {
+            var low = 0;
+            var high = size - 1;
+            
+            while (low <= high) {
+                var mid = (low + high) >>> 1;
+                
+                if (numbers[mid] <= number) {
+                    low = mid + 1;
+                }
+                else {
+                    high = mid - 1;
+                }
+            }
+            
+            return high;
+        }
+    }
+}
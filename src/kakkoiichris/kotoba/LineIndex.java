@@ -0,0 +1,81 @@
+package kakkoiichris.kotoba;
+
+public class LineIndex {
+    // Ring of absolute line starts, base is the absolute position of the first stored glyph
+    private long[] starts = new long[64];
+    private int head = 0;
+    private volatile int size = 1;
+    private long base = 0;
+    
+    public int size() {
+        return size;
+    }
+    
+    public int getStart(int line) {
+        return (int) (starts[(head + line) & (starts.length - 1)] - base);
+    }
+    
+    public int getLine(int position) {
+        var low = 0;
+        var high = size - 1;
+        
+        while (low < high) {
+            var mid = (low + high + 1) >>> 1;
+            
+            if (getStart(mid) <= position) {
+                low = mid;
+            }
+            else {
+                high = mid - 1;
+            }
+        }
+        
+        return low;
+    }
+    
+    public void add(int start) {
+        if (size == starts.length) {
+            var grown = new long[starts.length * 2];
+            
+            for (var i = 0; i < size; i++) {
+                grown[i] = starts[(head + i) & (starts.length - 1)];
+            }
+            
+            starts = grown;
+            head = 0;
+        }
+        
+        starts[(head + size) & (starts.length - 1)] = base + start;
+        
+        size++;
+    }
+    
+    // Drops whole lines from the top and returns how many glyphs they held
+    public int removeFirst(int lines) {
+        lines = Math.min(lines, size - 1);
+        
+        head = (head + lines) & (starts.length - 1);
+        size -= lines;
+        
+        var removed = starts[head] - base;
+        
+        base = starts[head];
+        
+        return (int) removed;
+    }
+    
+    // Drops glyphs from the front of the first line
+    public void trimFirst(int glyphs) {
+        base += glyphs;
+        
+        starts[head] = base;
+    }
+    
+    public void clear() {
+        head = 0;
+        size = 1;
+        base = 0;
+        
+        starts[0] = 0;
+    }
+}
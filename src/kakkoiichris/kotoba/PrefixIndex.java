@@ -0,0 +1,106 @@
+package kakkoiichris.kotoba;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.IntStream;
+
+public class PrefixIndex implements CompletionProvider {
+    // Words sharing a prefix are next to each other, so each prefix is a range found by two binary searches
+    private final String[] words;
+    private final int[] weights;
+    private final boolean weighted;
+    
+    // Every word heaviest first, for prefixes so wide that ranking their whole range would be slow
+    private final int[] order;
+    
+    public PrefixIndex(Collection<String> words) {
+        this.words = words.stream().distinct().sorted().toArray(String[]::new);
+        
+        weights = new int[this.words.length];
+        weighted = false;
+        
+        order = new int[0];
+    }
+    
+    // Heavier words are ranked first, words of the same weight are in order
+    public PrefixIndex(Map<String, Integer> words) {
+        var sorted = new TreeMap<>(words);
+        
+        this.words = sorted.keySet().toArray(String[]::new);
+        
+        weights = sorted.values().stream().mapToInt(Integer::intValue).toArray();
+        weighted = true;
+        
+        order = IntStream
+            .range(0, this.words.length)
+            .boxed()
+            .sorted(byRank())
+            .mapToInt(Integer::intValue)
+            .toArray();
+    }
+    
+    public int size() {
+        return words.length;
+    }
+    
+    @Override
+    public List<String> complete(String prefix, int limit) {
+        var from = lowerBound(prefix);
+        var to = lowerBound(prefix + Character.MAX_VALUE);
+        
+        if (!weighted) {
+            return List.copyOf(Arrays.asList(words).subList(from, Math.min(to, from + limit)));
+        }
+        
+        var count = to - from;
+        
+        // A narrow range is ranked directly, a wide one is picked out of the global ranking, whichever visits fewer words
+        if ((long) count * count <= (long) limit * words.length) {
+            return IntStream
+                .range(from, to)
+                .boxed()
+                .sorted(byRank())
+                .limit(limit)
+                .map(i -> words[i])
+                .toList();
+        }
+        
+        var ranked = new ArrayList<String>();
+        
+        for (var i = 0; i < order.length && ranked.size() < limit; i++) {
+            if (from <= order[i] && order[i] < to) {
+                ranked.add(words[order[i]]);
+            }
+        }
+        
+        return ranked;
+    }
+    
+    // Heaviest first, then in order
+    private Comparator<Integer> byRank() {
+        return Comparator.<Integer>comparingInt(i -> -weights[i]).thenComparingInt(i -> i);
+    }
+    
+    private int lowerBound(String key) {
+        var low = 0;
+        var high = words.length;
+        
+        while (low < high) {
+            var mid = (low + high) >>> 1;
+            
+            if (words[mid].compareTo(key) < 0) {
+                low = mid + 1;
+            }
+            else {
+                high = mid;
+            }
+        }
+        
+        return low;
+    }
+}
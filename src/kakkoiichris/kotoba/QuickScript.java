@@ -231,6 +231,15 @@ public class QuickScript {
                         console.addRules(rule.withEffect(effect));
                     }
                     
+                    case "rule_priority" -> {
+                        var name = args.get(0);
+                        var priority = toInt(args.get(1)).orElseThrow(() -> new RuntimeException("RULE_PRIORITY FAIL"));
+                        
+                        var rule = console.getRule(name).orElseThrow(() -> new RuntimeException("RULE_PRIORITY NO RULE"));
+                        
+                        console.addRules(rule.withPriority(priority));
+                    }
+                    
                     case "rule_remove" -> console.removeRules(args.get(0));
                     
                     case "rules" -> {
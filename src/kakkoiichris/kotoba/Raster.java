@@ -4,6 +4,8 @@ import java.awt.image.BufferedImage;
 import java.awt.image.DataBufferInt;
 import java.util.Arrays;
 
+import static java.lang.Math.max;
+import static java.lang.Math.min;
 import static kakkoiichris.kotoba.util.ColorMath.*;
 
 public class Raster {
@@ -11,16 +13,49 @@ public class Raster {
     private final int width;
     private final int height;
     
+    private int clipTop;
+    private int clipBottom;
+    
     public Raster(BufferedImage image) {
         pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
         width = image.getWidth();
         height = image.getHeight();
+        
+        clipTop = 0;
+        clipBottom = height;
+    }
+    
+    public int getWidth() {
+        return width;
+    }
+    
+    public int getHeight() {
+        return height;
+    }
+    
+    public void clip(int top, int bottom) {
+        clipTop = max(top, 0);
+        clipBottom = min(bottom, height);
+    }
+    
+    public void unclip() {
+        clipTop = 0;
+        clipBottom = height;
     }
     
     public void clear(int c) {
         Arrays.fill(pixels, c);
     }
     
+    public void clear(int c, int top, int bottom) {
+        top = max(top, 0);
+        bottom = min(bottom, height);
+        
+        if (top < bottom) {
+            Arrays.fill(pixels, top * width, bottom * width, c);
+        }
+    }
+    
     public int get(int x, int y) {
         if (0 <= x && x < width && 0 <= y && y < height) {
             return pixels[x + y * width];
@@ -30,7 +65,7 @@ public class Raster {
     }
     
     public void put(int x, int y, int c, double a) {
-        if (0 <= x && x < width && 0 <= y && y < height) {
+        if (0 <= x && x < width && clipTop <= y && y < clipBottom) {
             pixels[x + y * width] = switch ((int) (a * 2)) {
                 case 0 -> pixels[x + y * width];
                 
@@ -41,11 +76,26 @@ public class Raster {
         }
     }
     
+    public void blit(int x, int y, int w, int h, int[] src) {
+        var x0 = max(x, 0);
+        var x1 = min(x + w, width);
+        var y0 = max(y, clipTop);
+        var y1 = min(y + h, clipBottom);
+        
+        if (x0 >= x1) {
+            return;
+        }
+        
+        for (var yy = y0; yy < y1; yy++) {
+            System.arraycopy(src, (yy - y) * w + (x0 - x), pixels, x0 + yy * width, x1 - x0);
+        }
+    }
+    
     public void invertRect(int x, int y, int w, int h) {
         for (var oy = 0; oy < h; oy++) {
             var yy = y + oy;
             
-            if (yy < 0 || yy >= height) continue;
+            if (yy < clipTop || yy >= clipBottom) continue;
             
             for (var ox = 0; ox < w; ox++) {
                 var xx = x + ox;
@@ -0,0 +1,515 @@
+package kakkoiichris.kotoba;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+
+public class RuleSet {
+    // Flags that can be written inline, so a pattern using only these can join the combined pattern
+    private static final int INLINE_FLAGS = Pattern.CASE_INSENSITIVE | Pattern.MULTILINE | Pattern.DOTALL | Pattern.UNICODE_CASE | Pattern.UNIX_LINES;
+    
+    private static final Pattern BACK_REFERENCE = Pattern.compile("\\\\[1-9]|\\\\k<|\\(\\?<[a-zA-Z]");
+    
+    private static final Pattern BOUNDARY = Pattern.compile("\\b");
+    
+    public static final RuleSet EMPTY = new RuleSet(new LinkedHashMap<>(), 0, 0);
+    
+    // Rules by name, in the order they were first added
+    private final Map<String, Glyph.Rule> named;
+    
+    // Rules in the order they claim characters, highest priority first and the earlier rule first within a priority
+    private final Glyph.Rule[] rules;
+    
+    // Snapshots never change, so the matcher is compiled once on first use
+    private volatile Compiled compiled = null;
+    
+    // Results for recently matched strings, dropped along with the snapshot when the rules change
+    private final int cacheSize;
+    private final int cacheLength;
+    private final Map<String, Glyph.Rule[]> cache;
+    
+    private RuleSet(LinkedHashMap<String, Glyph.Rule> named, int cacheSize, int cacheLength) {
+        this.named = Collections.unmodifiableMap(named);
+        this.cacheSize = cacheSize;
+        this.cacheLength = cacheLength;
+        
+        cache = (cacheSize > 0) ? new LinkedHashMap<>(16, 0.75F, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Glyph.Rule[]> eldest) {
+                return size() > cacheSize;
+            }
+        } : null;
+        
+        rules = named
+            .values()
+            .stream()
+            .sorted(Comparator.comparingInt(Glyph.Rule::priority).reversed())
+            .toArray(Glyph.Rule[]::new);
+    }
+    
+    public RuleSet with(Glyph.Rule... rules) {
+        var named = new LinkedHashMap<>(this.named);
+        
+        for (var rule : rules) {
+            named.put(rule.name(), rule);
+        }
+        
+        return new RuleSet(named, cacheSize, cacheLength);
+    }
+    
+    public RuleSet without(String... names) {
+        var named = new LinkedHashMap<>(this.named);
+        
+        for (var name : names) {
+            named.remove(name);
+        }
+        
+        return new RuleSet(named, cacheSize, cacheLength);
+    }
+    
+    public RuleSet cleared() {
+        return new RuleSet(new LinkedHashMap<>(), cacheSize, cacheLength);
+    }
+    
+    // Strings up to the given length have their matches remembered, the last size of them are kept
+    public RuleSet withCache(int size, int length) {
+        return new RuleSet(new LinkedHashMap<>(named), size, length);
+    }
+    
+    public Optional<Glyph.Rule> get(String name) {
+        return Optional.ofNullable(named.get(name));
+    }
+    
+    public boolean has(String name) {
+        return named.containsKey(name);
+    }
+    
+    public boolean isEmpty() {
+        return rules.length == 0;
+    }
+    
+    public List<Glyph.Rule> getRules() {
+        return List.of(rules);
+    }
+    
+    // Maps every character to the rule that styles it, earlier rules win where matches overlap, the result must not be changed
+    public Glyph.Rule[] match(String string) {
+        var cached = cache != null && string.length() <= cacheLength;
+        
+        if (cached) {
+            synchronized (cache) {
+                var matches = cache.get(string);
+                
+                if (matches != null) {
+                    return matches;
+                }
+            }
+        }
+        
+        var matches = getCompiled().match(string);
+        
+        if (cached) {
+            synchronized (cache) {
+                cache.put(string, matches);
+            }
+        }
+        
+        return matches;
+    }
+    
+    // How many characters before new text can still change how they or the new text match, unbounded when any rule is a real regex
+    public int getReach() {
+        return getCompiled().reach;
+    }
+    
+    private Compiled getCompiled() {
+        var compiled = this.compiled;
+        
+        if (compiled == null) {
+            compiled = new Compiled(rules);
+            
+            this.compiled = compiled;
+        }
+        
+        return compiled;
+    }
+    
+    private static class Compiled {
+        private final Glyph.Rule[] rules;
+        
+        // A literal can start one character short of its length back, a boundary before or after it looks at one more
+        private final int reach;
+        
+        // Literal rules share one automaton, including literals between word boundaries
+        private final Automaton literals = new Automaton();
+        
+        // The other rules still match on their own, so each keeps its own matches, but one pass over their alternation finds where any of them can first match
+        private final Pattern combined;
+        private final int[] combinedRules;
+        
+        // Patterns that cannot be combined are still run on their own
+        private final List<Integer> separate = new ArrayList<>();
+        
+        private Compiled(Glyph.Rule[] rules) {
+            this.rules = rules;
+            
+            var alternatives = new ArrayList<String>();
+            var combinedRules = new ArrayList<Integer>();
+            var reach = 0;
+            
+            for (var i = 0; i < rules.length; i++) {
+                var regex = rules[i].regex();
+                
+                var literal = getLiteral(regex);
+                var bounded = (literal == null) ? getBounded(regex) : null;
+                
+                if (literal != null) {
+                    if (!literal.isEmpty()) {
+                        literals.add(literal, i, false, false);
+                        
+                        reach = max(reach, literal.length() - 1);
+                    }
+                }
+                else if (bounded != null) {
+                    literals.add(bounded.literal(), i, bounded.left(), bounded.right());
+                    
+                    reach = max(reach, bounded.literal().length());
+                }
+                else if (isCombinable(regex)) {
+                    alternatives.add("(?%s:%s)".formatted(getInlineFlags(regex.flags()), regex.pattern()));
+                    
+                    combinedRules.add(i);
+                    
+                    reach = Integer.MAX_VALUE;
+                }
+                else {
+                    separate.add(i);
+                    
+                    reach = Integer.MAX_VALUE;
+                }
+            }
+            
+            literals.build();
+            
+            combined = (alternatives.isEmpty()) ? null : Pattern.compile(String.join("|", alternatives));
+            
+            this.combinedRules = combinedRules.stream().mapToInt(Integer::intValue).toArray();
+            this.reach = reach;
+        }
+        
+        private Glyph.Rule[] match(String string) {
+            var owners = new int[string.length()];
+            
+            Arrays.fill(owners, Integer.MAX_VALUE);
+            
+            literals.match(string, owners);
+            
+            // The alternation stops at the first rule that matches, which would hide overlapping matches of later rules
+            if (combined != null) {
+                var first = combined.matcher(string);
+                
+                if (first.find()) {
+                    for (var rule : combinedRules) {
+                        var matcher = rules[rule].regex().matcher(string);
+                        
+                        if (!matcher.find(first.start())) {
+                            continue;
+                        }
+                        
+                        do {
+                            claim(owners, rule, matcher.start(), matcher.end());
+                        }
+                        while (matcher.find());
+                    }
+                }
+            }
+            
+            for (var rule : separate) {
+                var matcher = rules[rule].regex().matcher(string);
+                
+                while (matcher.find()) {
+                    claim(owners, rule, matcher.start(), matcher.end());
+                }
+            }
+            
+            var matches = new Glyph.Rule[string.length()];
+            
+            for (var i = 0; i < owners.length; i++) {
+                if (owners[i] != Integer.MAX_VALUE) {
+                    matches[i] = rules[owners[i]];
+                }
+            }
+            
+            return matches;
+        }
+    }
+    
+    // Group references would shift, and an empty match would make the alternation match everywhere
+    private static boolean isCombinable(Pattern regex) {
+        return (regex.flags() & ~INLINE_FLAGS) == 0 && !BACK_REFERENCE.matcher(regex.pattern()).find() && !regex.matcher("").matches();
+    }
+    
+    private static void claim(int[] owners, int rule, int start, int end) {
+        for (var i = start; i < end; i++) {
+            owners[i] = min(owners[i], rule);
+        }
+    }
+    
+    // Returns the text a pattern matches when it can only match itself, or null when it is a real regex
+    private static String getLiteral(Pattern regex) {
+        if (regex.flags() == Pattern.LITERAL) {
+            return regex.pattern();
+        }
+        
+        if (regex.flags() != 0) {
+            return null;
+        }
+        
+        return getLiteral(regex.pattern());
+    }
+    
+    // Keywords are usually written as a literal between word boundaries, which the automaton can check where it finds the literal
+    private static Bounded getBounded(Pattern regex) {
+        var pattern = regex.pattern();
+        
+        if (regex.flags() != 0) {
+            return null;
+        }
+        
+        var left = pattern.startsWith("\\b");
+        var from = (left) ? 2 : 0;
+        
+        // An escaped backslash before the b leaves an odd one in the middle, which is not a literal
+        var right = pattern.length() >= from + 2 && pattern.endsWith("\\b");
+        var to = (right) ? pattern.length() - 2 : pattern.length();
+        
+        if (!left && !right) {
+            return null;
+        }
+        
+        var literal = getLiteral(pattern.substring(from, to));
+        
+        return (literal != null && !literal.isEmpty()) ? new Bounded(literal, left, right) : null;
+    }
+    
+    private static String getLiteral(String pattern) {
+        if (pattern.startsWith("\\Q") && pattern.endsWith("\\E") && pattern.indexOf("\\E") == pattern.length() - 2) {
+            return pattern.substring(2, pattern.length() - 2);
+        }
+        
+        var literal = new StringBuilder();
+        
+        for (var i = 0; i < pattern.length(); i++) {
+            var c = pattern.charAt(i);
+            
+            if (c == '\\') {
+                // Only escaped punctuation stands for itself
+                if (i + 1 == pattern.length() || Character.isLetterOrDigit(pattern.charAt(i + 1))) {
+                    return null;
+                }
+                
+                literal.append(pattern.charAt(++i));
+            }
+            else if ("^$.|?*+()[]{}".indexOf(c) >= 0) {
+                return null;
+            }
+            else {
+                literal.append(c);
+            }
+        }
+        
+        return literal.toString();
+    }
+    
+    private static String getInlineFlags(int flags) {
+        var inline = new StringBuilder();
+        
+        if ((flags & Pattern.CASE_INSENSITIVE) != 0) {
+            inline.append('i');
+        }
+        
+        if ((flags & Pattern.MULTILINE) != 0) {
+            inline.append('m');
+        }
+        
+        if ((flags & Pattern.DOTALL) != 0) {
+            inline.append('s');
+        }
+        
+        if ((flags & Pattern.UNICODE_CASE) != 0) {
+            inline.append('u');
+        }
+        
+        if ((flags & Pattern.UNIX_LINES) != 0) {
+            inline.append('d');
+        }
+        
+        return inline.toString();
+    }
+    
+    private record Bounded(String literal, boolean left, boolean right) {
+    }
+    
+    private static class Automaton {
+        private final List<Node> nodes = new ArrayList<>(List.of(new Node()));
+        
+        private final List<String> words = new ArrayList<>();
+        private final List<Integer> wordRules = new ArrayList<>();
+        
+        // Whether a word only counts with a word boundary before or after it
+        private final List<Boolean> lefts = new ArrayList<>();
+        private final List<Boolean> rights = new ArrayList<>();
+        private boolean bounded = false;
+        
+        private void add(String word, int rule, boolean left, boolean right) {
+            var node = 0;
+            
+            for (var i = 0; i < word.length(); i++) {
+                var next = nodes.get(node).get(word.charAt(i));
+                
+                if (next < 0) {
+                    next = nodes.size();
+                    
+                    nodes.get(node).put(word.charAt(i), next);
+                    
+                    nodes.add(new Node());
+                }
+                
+                node = next;
+            }
+            
+            nodes.get(node).words.add(words.size());
+            
+            words.add(word);
+            wordRules.add(rule);
+            lefts.add(left);
+            rights.add(right);
+            
+            bounded |= left || right;
+        }
+        
+        // Links every node to its longest proper suffix in the trie, and to the nearest suffix that ends a word
+        private void build() {
+            var queue = new ArrayDeque<Integer>();
+            
+            var root = nodes.get(0);
+            
+            for (var i = 0; i < root.size; i++) {
+                queue.add(root.targets[i]);
+            }
+            
+            while (!queue.isEmpty()) {
+                var id = queue.poll();
+                var node = nodes.get(id);
+                
+                for (var i = 0; i < node.size; i++) {
+                    var c = node.labels[i];
+                    var child = nodes.get(node.targets[i]);
+                    
+                    var fail = node.fail;
+                    
+                    while (fail > 0 && nodes.get(fail).get(c) < 0) {
+                        fail = nodes.get(fail).fail;
+                    }
+                    
+                    var target = nodes.get(fail).get(c);
+                    
+                    child.fail = max(target, 0);
+                    child.output = (!nodes.get(child.fail).words.isEmpty()) ? child.fail : nodes.get(child.fail).output;
+                    
+                    queue.add(node.targets[i]);
+                }
+            }
+        }
+        
+        private void match(String string, int[] owners) {
+            if (words.isEmpty()) {
+                return;
+            }
+            
+            // Each rule keeps its own matches from overlapping, the same as running its pattern alone
+            var ends = new int[words.size()];
+            
+            // Boundaries are checked by the regex engine itself, so they mean exactly what they would in the pattern
+            var boundary = (bounded) ? BOUNDARY.matcher(string).useTransparentBounds(true).useAnchoringBounds(false) : null;
+            
+            var node = 0;
+            
+            for (var i = 0; i < string.length(); i++) {
+                var c = string.charAt(i);
+                
+                while (node > 0 && nodes.get(node).get(c) < 0) {
+                    node = nodes.get(node).fail;
+                }
+                
+                node = max(nodes.get(node).get(c), 0);
+                
+                for (var hit = node; hit > 0; hit = nodes.get(hit).output) {
+                    for (var word : nodes.get(hit).words) {
+                        var start = i + 1 - words.get(word).length();
+                        
+                        if (start < ends[word]) {
+                            continue;
+                        }
+                        
+                        if ((lefts.get(word) && !isBoundary(boundary, start)) || (rights.get(word) && !isBoundary(boundary, i + 1))) {
+                            continue;
+                        }
+                        
+                        ends[word] = i + 1;
+                        
+                        claim(owners, wordRules.get(word), start, i + 1);
+                    }
+                }
+            }
+        }
+        
+        private static boolean isBoundary(Matcher boundary, int index) {
+            boundary.region(index, index);
+            
+            return boundary.lookingAt();
+        }
+    }
+    
+    private static class Node {
+        private char[] labels = new char[2];
+        private int[] targets = new int[2];
+        private int size = 0;
+        
+        private int fail = 0;
+        private int output = 0;
+        
+        private final List<Integer> words = new ArrayList<>(1);
+        
+        private int get(char c) {
+            for (var i = 0; i < size; i++) {
+                if (labels[i] == c) {
+                    return targets[i];
+                }
+            }
+            
+            return -1;
+        }
+        
+        private void put(char c, int target) {
+            if (size == labels.length) {
+                labels = Arrays.copyOf(labels, size * 2);
+                targets = Arrays.copyOf(targets, size * 2);
+            }
+            
+            labels[size] = c;
+            targets[size++] = target;
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package kakkoiichris.kotoba;
+
+import java.util.concurrent.locks.LockSupport;
+
+public class Scheduler {
+    private final Thread thread;
+    
+    private volatile boolean woken = false;
+    
+    public Scheduler(Thread thread) {
+        this.thread = thread;
+    }
+    
+    public void wake() {
+        woken = true;
+        
+        LockSupport.unpark(thread);
+    }
+    
+    // Parks the loop thread until the timeout runs out or something wakes it, a negative timeout parks indefinitely
+    public void park(long nanos) {
+        if (!woken) {
+            if (nanos < 0) {
+                LockSupport.park(this);
+            }
+            else if (nanos > 0) {
+                LockSupport.parkNanos(this, nanos);
+            }
+        }
+        
+        woken = false;
+    }
+}
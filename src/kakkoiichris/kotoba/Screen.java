@@ -0,0 +1,1126 @@
+package kakkoiichris.kotoba;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+
+public class Screen {
+    private final int foreground;
+    private final int background;
+    private final Font font;
+    private final int xSpace;
+    private final int ySpace;
+    private final int tabSize;
+    private final double frameRate;
+    private final double scrollSpeed;
+    private final double cursorSpeed;
+    private final int scrollbackLines;
+    private final int scrollbackGlyphs;
+    private final int spillGlyphs;
+    private final int ruleWindow;
+    private final int outputLimit;
+    private final Backpressure backpressure;
+    
+    // Graphics
+    private BufferedImage image;
+    private Raster raster;
+    
+    private final GlyphCache glyphCache;
+    private final Damage damage = new Damage();
+    private final List<Deferred> deferred = new ArrayList<>();
+    private int renderedScrollY = 0;
+    
+    // Output
+    private final GlyphStore output;
+    // Writers link batches after the tail without locking, only the loop thread consumes them and touches the store
+    private volatile Batch head = new Batch(List.of(), Carry.EMPTY, false, 0, true);
+    private final AtomicReference<Batch> tail = new AtomicReference<>(head);
+    private final LineIndex lineIndex = new LineIndex();
+    
+    // Glyphs written but not yet polled, writers over the limit wait or are dropped depending on the policy
+    private final AtomicLong pending = new AtomicLong();
+    private final AtomicLong unreported = new AtomicLong();
+    private final AtomicReference<Batch> dropCursor = new AtomicReference<>(head);
+    private final ReentrantLock pendingLock = new ReentrantLock();
+    private final Condition drained = pendingLock.newCondition();
+    private volatile boolean closed = false;
+    
+    // Writes held back by the coalescing policy, in order, only the loop thread queues them
+    private final List<Staged> staged = new ArrayList<>();
+    private final ReentrantLock stageLock = new ReentrantLock();
+    private volatile long stagedGlyphs = 0;
+    
+    // Glyphs polled since the last dropped batch, a later retract cannot take back more than these
+    private long retractable = 0;
+    
+    // Input
+    private final GapBuffer input = new GapBuffer();
+    
+    private int inputIndex = 0;
+    
+    // Long input is scrolled sideways to keep the cursor in view, only the glyphs that fit are updated and drawn
+    private int inputFirst = 0;
+    private int inputLast = 0;
+    
+    // Drawn ahead of the input, such as the query while searching history
+    private volatile String inputPrefix = "";
+    private boolean inputWaiting = false;
+    private boolean keyWaiting = false;
+    
+    // Cursor
+    private double cursorBlinkTimer = 0;
+    private boolean cursorVisible = false;
+    
+    // Formatting
+    // Writers read the current snapshot without locking, changes swap in a new one
+    private final AtomicReference<RuleSet> rules;
+    
+    private volatile boolean rulesEnabled = true;
+    private Glyph.Effect effect;
+    private boolean inverted = false;
+    
+    // Animation clock in frames, shared by every effect, the frame time is the one output is drawn at
+    private double time = 0.0;
+    private double frameTime = 0.0;
+    
+    private final Glyph scratch = new Glyph(' ', false, Glyph.Effect.None.get());
+    private final Glyph before = new Glyph(' ', false, Glyph.Effect.None.get());
+    
+    // Scrolling
+    private int scrollTarget = 0;
+    private double scrollOffset = 0.0;
+    
+    public Screen(Console.Config config) {
+        foreground = config.getForeground();
+        background = config.getBackground();
+        font = config.getFont();
+        xSpace = config.getXSpace();
+        ySpace = config.getYSpace();
+        tabSize = config.getTabSize();
+        frameRate = config.getFrameRate();
+        scrollSpeed = config.getScrollSpeed();
+        cursorSpeed = config.getCursorSpeed();
+        scrollbackLines = config.getScrollbackLines();
+        scrollbackGlyphs = config.getScrollbackGlyphs();
+        spillGlyphs = config.getSpillGlyphs();
+        ruleWindow = config.getRuleWindow();
+        outputLimit = config.getOutputLimit();
+        backpressure = config.getBackpressure();
+        
+        rules = new AtomicReference<>(RuleSet.EMPTY.withCache(config.getMatchCacheSize(), config.getMatchCacheLength()));
+        
+        output = new GlyphStore((spillGlyphs > 0) ? new Spill(spillGlyphs) : null);
+        
+        effect = new Glyph.Effect.Color(foreground);
+        
+        image = new BufferedImage(config.getWidth(), config.getHeight(), BufferedImage.TYPE_INT_RGB);
+        
+        raster = new Raster(image);
+        
+        glyphCache = new GlyphCache(font, background, config.getGlyphCacheSize());
+    }
+    
+    public Glyph.Effect getEffect() {
+        return effect;
+    }
+    
+    public void setEffect(Glyph.Effect effect) {
+        this.effect = effect;
+    }
+    
+    public boolean isInverted() {
+        return inverted;
+    }
+    
+    public void setInverted(boolean inverted) {
+        this.inverted = inverted;
+    }
+    
+    public boolean isRulesEnabled() {
+        return rulesEnabled;
+    }
+    
+    public void setRulesEnabled(boolean rulesEnabled) {
+        this.rulesEnabled = rulesEnabled;
+    }
+    
+    public int getWidth() {
+        return image.getWidth();
+    }
+    
+    public int getHeight() {
+        return image.getHeight();
+    }
+    
+    public BufferedImage getImage() {
+        return image;
+    }
+    
+    public int[] getPixels() {
+        return ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+    }
+    
+    public void resize(int width, int height) {
+        image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        
+        raster = new Raster(image);
+        
+        damage.markAll();
+        
+        end();
+    }
+    
+    public GapBuffer getInput() {
+        return input;
+    }
+    
+    public int getInputIndex() {
+        return inputIndex;
+    }
+    
+    public void setInputIndex(int inputIndex) {
+        this.inputIndex = inputIndex;
+        
+        damage.markInput();
+    }
+    
+    public void setInputPrefix(String inputPrefix) {
+        this.inputPrefix = inputPrefix;
+        
+        damage.markInput();
+    }
+    
+    public boolean isInputWaiting() {
+        return inputWaiting;
+    }
+    
+    public void setInputWaiting(boolean inputWaiting) {
+        this.inputWaiting = inputWaiting;
+        
+        damage.markInput();
+    }
+    
+    public boolean isKeyWaiting() {
+        return keyWaiting;
+    }
+    
+    public void setKeyWaiting(boolean keyWaiting) {
+        this.keyWaiting = keyWaiting;
+        
+        damage.markInput();
+    }
+    
+    public void markInput() {
+        damage.markInput();
+    }
+    
+    public void blinkCursor() {
+        cursorBlinkTimer = 0;
+        
+        cursorVisible = true;
+        
+        damage.markInput();
+    }
+    
+    private boolean isWaiting() {
+        return inputWaiting || keyWaiting;
+    }
+    
+    // Seconds until the screen needs another update, zero while anything is animated or left to draw
+    public double getIdleTime() {
+        if (!damage.isClean() || hasPending() || !isScrollSettled() || isAnimationVisible()) {
+            return 0.0;
+        }
+        
+        if (isWaiting()) {
+            return max(cursorSpeed - cursorBlinkTimer, 0.0);
+        }
+        
+        return Double.POSITIVE_INFINITY;
+    }
+    
+    // Animation scrolled out of view is caught up on when it comes back, since effects only depend on the clock
+    private boolean isAnimationVisible() {
+        var lineHeight = font.getHeight() + ySpace;
+        var scrollY = (int) (scrollOffset * lineHeight);
+        
+        // One line of margin each way for glyphs offset into view
+        var first = max(0, (scrollY - ySpace) / lineHeight - 2);
+        var last = (scrollY - ySpace + raster.getHeight()) / lineHeight + 2;
+        
+        var inputLine = getLineCount() - 1;
+        
+        if (inputWaiting && input.getAnimatedCount() > 0 && first <= inputLine && inputLine <= last) {
+            return true;
+        }
+        
+        // Runs are in output order, so the search stops at the first one that ends above the viewport
+        for (var n = output.getAnimatedCount() - 1; n >= 0; n--) {
+            var run = output.getAnimated(n);
+            
+            if (lineIndex.getLine(output.getRunEnd(run) - 1) < first) {
+                break;
+            }
+            
+            if (lineIndex.getLine(output.getRunStart(run)) <= last) {
+                return true;
+            }
+        }
+        
+        return false;
+    }
+    
+    // Scrolling is settled once the offset is within a pixel of the target, the easing only approaches it and may never round onto it
+    private boolean isScrollSettled() {
+        var lineHeight = font.getHeight() + ySpace;
+        
+        return Math.abs(scrollTarget - scrollOffset) * lineHeight < 1.0;
+    }
+    
+    public int getLineCount() {
+        return lineIndex.size();
+    }
+    
+    public int getLinesOnScreen() {
+        return raster.getHeight() / (font.getHeight() + ySpace);
+    }
+    
+    public double getScrollOffset() {
+        return scrollOffset;
+    }
+    
+    public Optional<Glyph.Rule> getRule(String name) {
+        return rules.get().get(name);
+    }
+    
+    public void addRules(Glyph.Rule... rules) {
+        this.rules.updateAndGet(set -> set.with(rules));
+    }
+    
+    public boolean hasRule(String name) {
+        return rules.get().has(name);
+    }
+    
+    public void removeRules(String... names) {
+        rules.updateAndGet(set -> set.without(names));
+    }
+    
+    public void clearRules() {
+        rules.updateAndGet(RuleSet::cleared);
+    }
+    
+    public void clear() {
+        if (backpressure != Backpressure.COALESCE) {
+            enqueue(last -> new Batch(List.of(), Carry.EMPTY, true, 0, true));
+            
+            return;
+        }
+        
+        // Writes still held back would otherwise show up after the clear
+        try {
+            stageLock.lock();
+            
+            staged.clear();
+            stagedGlyphs = 0;
+            
+            enqueue(last -> new Batch(List.of(), Carry.EMPTY, true, 0, true));
+        }
+        finally {
+            stageLock.unlock();
+        }
+    }
+    
+    public void write(String string) {
+        if (backpressure == Backpressure.COALESCE && outputLimit > 0) {
+            coalesce(string, true);
+            
+            return;
+        }
+        
+        if (outputLimit > 0 && !admit(string.length())) {
+            return;
+        }
+        
+        if (backpressure == Backpressure.DROP_NEWEST_AND_REPORT) {
+            var dropped = unreported.getAndSet(0);
+            
+            // The notice is plain text on a line of its own, whatever the rules and style of the writes around it
+            if (dropped > 0) {
+                var notice = "[%d writes dropped]\n".formatted(dropped);
+                
+                enqueue(last -> build((last.lineStart) ? notice : '\n' + notice, last, RuleSet.EMPTY, Glyph.Effect.None.get(), false));
+            }
+        }
+        
+        echo(string);
+    }
+    
+    // Writes without backpressure, for output the console itself produces such as echoed input
+    public void echo(String string) {
+        // Stays behind any writes that are held back
+        if (stagedGlyphs > 0) {
+            coalesce(string, false);
+            
+            return;
+        }
+        
+        var ruleSet = (rulesEnabled) ? rules.get() : RuleSet.EMPTY;
+        var effect = this.effect;
+        var inverted = this.inverted;
+        
+        enqueue(last -> build(string, last, ruleSet, effect, inverted));
+    }
+    
+    public long getPending() {
+        return pending.get() + stagedGlyphs;
+    }
+    
+    private boolean admit(int glyphs) {
+        switch (backpressure) {
+            case BLOCK -> {
+                try {
+                    pendingLock.lock();
+                    
+                    while (!closed && pending.get() > 0 && pending.get() + glyphs > outputLimit) {
+                        drained.await();
+                    }
+                }
+                catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                finally {
+                    pendingLock.unlock();
+                }
+                
+                return true;
+            }
+            
+            case DROP_OLDEST -> {
+                dropOldest(outputLimit - glyphs);
+                
+                return true;
+            }
+            
+            case DROP_NEWEST_AND_REPORT -> {
+                if (pending.get() > 0 && pending.get() + glyphs > outputLimit) {
+                    unreported.incrementAndGet();
+                    
+                    return false;
+                }
+                
+                return true;
+            }
+            
+            default -> {
+                return pending.get() == 0 || pending.get() + glyphs <= outputLimit;
+            }
+        }
+    }
+    
+    // Writers are queued in turn, so one that finds the queue caught up cannot pass output that is still held back
+    private void coalesce(String string, boolean limited) {
+        var ruleSet = (rulesEnabled) ? rules.get() : RuleSet.EMPTY;
+        var effect = this.effect;
+        var inverted = this.inverted;
+        
+        try {
+            stageLock.lock();
+            
+            if (staged.isEmpty() && (pending.get() == 0 || pending.get() + string.length() <= outputLimit)) {
+                enqueue(last -> build(string, last, ruleSet, effect, inverted));
+                
+                return;
+            }
+            
+            if (string.isEmpty() || (limited && stagedGlyphs > 0 && stagedGlyphs + string.length() > outputLimit)) {
+                return;
+            }
+            
+            var segment = (staged.isEmpty()) ? null : staged.get(staged.size() - 1);
+            
+            // The same rules and style continue the held back text, so the merged write matches exactly as the pieces would
+            if (segment != null && segment.ruleSet() == ruleSet && segment.inverted() == inverted && segment.effect().equals(effect)) {
+                segment.text().append(string);
+            }
+            else {
+                staged.add(new Staged(new StringBuilder(string), ruleSet, effect, inverted));
+            }
+            
+            stagedGlyphs += string.length();
+        }
+        finally {
+            stageLock.unlock();
+        }
+    }
+    
+    private void flushStaged() {
+        try {
+            stageLock.lock();
+            
+            for (var segment : staged) {
+                var text = segment.text().toString();
+                
+                enqueue(last -> build(text, last, segment.ruleSet(), segment.effect(), segment.inverted()));
+            }
+            
+            staged.clear();
+            stagedGlyphs = 0;
+        }
+        finally {
+            stageLock.unlock();
+        }
+    }
+    
+    // Empties the oldest unpolled batches until the pending glyphs fit, clears are kept so they still happen
+    private void dropOldest(long target) {
+        var cursor = dropCursor.get();
+        var batch = cursor;
+        
+        while (pending.get() > target && batch != null) {
+            if (batch.glyphs > 0 && batch.entries.getAndSet(null) != null) {
+                pending.addAndGet(-batch.glyphs);
+            }
+            
+            var next = batch.next.get();
+            
+            if (next == null) {
+                break;
+            }
+            
+            batch = next;
+        }
+        
+        dropCursor.compareAndSet(cursor, batch);
+    }
+    
+    // Each batch continues the carry of the one before it, so a writer that loses the race rebuilds against the new tail
+    private void enqueue(Function<Batch, Batch> builder) {
+        while (true) {
+            var last = tail.get();
+            var next = last.next.get();
+            
+            if (next != null) {
+                tail.compareAndSet(last, next);
+                
+                continue;
+            }
+            
+            var batch = builder.apply(last);
+            
+            // Counted before it is linked, so the consumer never takes away glyphs that were not added
+            pending.addAndGet(batch.glyphs);
+            
+            if (last.next.compareAndSet(null, batch)) {
+                tail.compareAndSet(last, batch);
+                
+                return;
+            }
+            
+            pending.addAndGet(-batch.glyphs);
+        }
+    }
+    
+    private Batch build(String string, Batch last, RuleSet ruleSet, Glyph.Effect effect, boolean inverted) {
+        var carry = last.carry;
+        var entries = new ArrayList<Pending>();
+        
+        // The end of the current line is matched again along with the new text, so rules can span writes
+        var carried = (ruleSet.isEmpty()) ? 0 : carry.length();
+        var text = (carried > 0) ? carry.followedBy(string) : string;
+        
+        var matches = (ruleSet.isEmpty()) ? new Glyph.Rule[text.length()] : ruleSet.match(text);
+        
+        var from = carried;
+        
+        for (var i = 0; i < carried; i++) {
+            if (matches[i] != carry.getRule(i)) {
+                from = i;
+                
+                break;
+            }
+        }
+        
+        // Carried glyphs whose rule changed are taken back and written again with their new style
+        if (from < carried) {
+            entries.add(new Retract(carried - from));
+        }
+        
+        var spanStart = from;
+        var spanEffect = effect;
+        var spanInvert = inverted;
+        
+        for (var i = from; i < text.length(); i++) {
+            var rule = matches[i];
+            
+            var thisEffect = (rule != null) ? rule.effect() : (i < carried) ? carry.getEffect(i) : effect;
+            var thisInvert = (rule != null) ? rule.invert() : (i < carried) ? carry.isInverted(i) : inverted;
+            
+            // Consecutive characters with the same style are written as one span
+            if (i > spanStart && (thisInvert != spanInvert || !thisEffect.equals(spanEffect))) {
+                entries.add(new Span(text.substring(spanStart, i), spanInvert, spanEffect));
+                
+                spanStart = i;
+            }
+            
+            if (i == spanStart) {
+                spanEffect = thisEffect;
+                spanInvert = thisInvert;
+            }
+        }
+        
+        if (spanStart < text.length()) {
+            entries.add(new Span(text.substring(spanStart), spanInvert, spanEffect));
+        }
+        
+        var next = Carry.EMPTY;
+        
+        // Only as much is carried as the rules can still match across, which is nothing for a set of single characters
+        if (!ruleSet.isEmpty() && ruleWindow > 0) {
+            next = carry.next(text, matches, effect, inverted, ruleWindow, ruleSet.getReach());
+        }
+        
+        var lineStart = (string.isEmpty()) ? last.lineStart : string.endsWith("\n");
+        
+        return new Batch(entries, next, false, text.length() - from, lineStart);
+    }
+    
+    public void update(double delta) {
+        // Only animated runs are revisited, a run is redrawn when its effect looks different at the new time
+        for (var n = 0; n < output.getAnimatedCount(); n++) {
+            var run = output.getAnimated(n);
+            var runEffect = output.getRunEffect(run);
+            
+            before.load(0, 0, 0);
+            runEffect.applyAt(before, frameTime);
+            
+            scratch.load(0, 0, 0);
+            runEffect.applyAt(scratch, time);
+            
+            if (scratch.getColor() != before.getColor() || scratch.getOffsetX() != before.getOffsetX() || scratch.getOffsetY() != before.getOffsetY()) {
+                var first = lineIndex.getLine(output.getRunStart(run));
+                var last = lineIndex.getLine(output.getRunEnd(run) - 1);
+                
+                markUpdated(first, last, before.getOffsetY(), scratch.getOffsetY());
+            }
+        }
+        
+        frameTime = time;
+        
+        var line = getLineCount() - 1;
+        
+        if (inputWaiting) {
+            for (var i = inputFirst; i < min(inputLast, input.size()); i++) {
+                updateGlyph(input.get(i), line);
+            }
+        }
+        
+        time += delta;
+        
+        cursorBlinkTimer += delta / frameRate;
+        
+        if (cursorBlinkTimer >= cursorSpeed) {
+            var visible = isWaiting() && !cursorVisible;
+            
+            if (visible != cursorVisible) {
+                cursorVisible = visible;
+                
+                damage.markInput();
+            }
+            
+            // A catch-up after idling can cover many blinks, only the phase within the current one matters
+            cursorBlinkTimer %= cursorSpeed;
+        }
+        
+        scrollOffset += (scrollTarget - scrollOffset) * scrollSpeed;
+    }
+    
+    public BufferedImage render() {
+        renderRaster();
+        
+        return image;
+    }
+    
+    private void renderRaster() {
+        var lineHeight = font.getHeight() + ySpace;
+        var scrollY = (int) (scrollOffset * lineHeight);
+        
+        if (scrollY != renderedScrollY) {
+            renderedScrollY = scrollY;
+            
+            damage.markAll();
+        }
+        
+        var first = max(0, (scrollY - ySpace) / lineHeight - 1);
+        var last = (scrollY - ySpace + raster.getHeight()) / lineHeight + 1;
+        
+        var dirty = damage.take(first, last, getLineCount() - 1);
+        
+        if (dirty.isEmpty()) {
+            return;
+        }
+        
+        for (var line = dirty.nextSetBit(0); line >= 0; line = dirty.nextSetBit(line + 1)) {
+            raster.clear(background, getBandTop(line), getLineTop(line + 1));
+        }
+        
+        var ox = xSpace;
+        var line = 0;
+        
+        // Lines just outside the viewport are drawn too, since offset glyphs can reach into it
+        var lastLine = lineIndex.size() - 1;
+        var from = max(first - 1, 0);
+        var to = min(last + 1, lastLine);
+        
+        for (line = from; line <= to; line++) {
+            ox = drawLine(dirty, line);
+        }
+        
+        // When the last line is off screen, none of the input's bands are dirty either
+        line = lastLine;
+        
+        var oy = getLineTop(line);
+        
+        if (inputWaiting) {
+            for (var c : inputPrefix.toCharArray()) {
+                drawGlyph(dirty, line, c, false, foreground, ox, oy);
+                
+                ox += font.get(c).width() + xSpace;
+            }
+            
+            scrollInput(ox);
+            
+            var i = inputFirst;
+            
+            for (; i < input.size() && ox < raster.getWidth(); i++) {
+                var glyph = input.get(i);
+                
+                var c = glyph.getChar();
+                var invert = glyph.isInverted() || (i == inputIndex && cursorVisible);
+                
+                var jx = glyph.getOffsetX();
+                var jy = glyph.getOffsetY();
+                
+                if (jx == 0 && jy == 0) {
+                    drawGlyph(dirty, line, c, invert, glyph.getColor(), ox, oy, glyph.getEffect().isAnimated());
+                }
+                else {
+                    deferred.add(new Deferred(line, c, invert, glyph.getColor(), ox + jx, oy + jy));
+                }
+                
+                ox += font.get(c).width() + xSpace;
+            }
+            
+            inputLast = i;
+        }
+        
+        // Moving glyphs are blended over the opaque cached cells of their neighbors
+        for (var glyph : deferred) {
+            plotGlyph(dirty, glyph.line(), glyph.c(), glyph.invert(), glyph.color(), glyph.x(), glyph.y());
+        }
+        
+        deferred.clear();
+        
+        if (inputWaiting && (input.isEmpty() || (inputIndex < 0 || input.size() <= inputIndex)) && cursorVisible && dirty.get(line)) {
+            var info = font.get(' ');
+            
+            raster.clip(getBandTop(line), getLineTop(line + 1));
+            
+            raster.invertRect(ox, oy, info.width(), font.getHeight());
+        }
+        
+        if (keyWaiting && cursorVisible) {
+            drawGlyph(dirty, line, 'A', true, foreground, ox, oy);
+        }
+        
+        raster.unclip();
+    }
+    
+    // Moves the first visible input glyph just enough for the cursor to fit in the space after the output
+    private void scrollInput(int ox) {
+        var cursor = max(min(inputIndex, input.size()), 0);
+        
+        if (cursor < inputFirst) {
+            inputFirst = cursor;
+            
+            return;
+        }
+        
+        var space = raster.getWidth() - ox;
+        var width = getInputWidth(cursor);
+        var first = cursor;
+        
+        while (first > inputFirst && width + getInputWidth(first - 1) <= space) {
+            width += getInputWidth(--first);
+        }
+        
+        inputFirst = first;
+    }
+    
+    private int getInputWidth(int i) {
+        var c = (i < input.size()) ? input.get(i).getChar() : ' ';
+        
+        return font.get(c).width() + xSpace;
+    }
+    
+    private int drawLine(BitSet dirty, int line) {
+        var start = lineIndex.getStart(line);
+        var end = (line + 1 < lineIndex.size()) ? lineIndex.getStart(line + 1) : output.size();
+        
+        var ox = xSpace;
+        
+        for (var i = start; i < end; i++) {
+            var c = output.getChar(i);
+            
+            switch (c) {
+                case '\t' -> {
+                    var info = font.get(' ');
+                    
+                    ox += (info.width() + xSpace) * tabSize;
+                    
+                    continue;
+                }
+                
+                case '\n' -> {
+                    continue;
+                }
+            }
+            
+            output.evaluate(i, scratch, frameTime);
+            
+            var invert = output.isInverted(i);
+            var color = scratch.getColor();
+            var jx = scratch.getOffsetX();
+            var jy = scratch.getOffsetY();
+            
+            if (jx == 0 && jy == 0) {
+                drawGlyph(dirty, line, c, invert, color, ox, getLineTop(line), output.isAnimated(i));
+            }
+            else {
+                deferred.add(new Deferred(line, c, invert, color, ox + jx, getLineTop(line) + jy));
+            }
+            
+            ox += font.get(c).width() + xSpace;
+        }
+        
+        return ox;
+    }
+    
+    private int getLineTop(int line) {
+        return ySpace - renderedScrollY + line * (font.getHeight() + ySpace);
+    }
+    
+    private int getBandTop(int line) {
+        return (line == 0) ? 0 : getLineTop(line);
+    }
+    
+    private void drawGlyph(BitSet dirty, int line, char c, boolean invert, int color, int gx, int gy) {
+        drawGlyph(dirty, line, c, invert, color, gx, gy, false);
+    }
+    
+    // Animated colors would fill the cache with cells that are never drawn again, so they are plotted over the cleared band instead
+    private void drawGlyph(BitSet dirty, int line, char c, boolean invert, int color, int gx, int gy, boolean animated) {
+        if (animated) {
+            plotGlyph(dirty, line, c, invert, color, gx, gy);
+            
+            return;
+        }
+        
+        var width = font.get(c).width();
+        var pixels = glyphCache.get(c, invert, color);
+        
+        for (var band = max(line - 1, 0); band <= line + 1; band++) {
+            if (!dirty.get(band)) {
+                continue;
+            }
+            
+            raster.clip(getBandTop(band), getLineTop(band + 1));
+            
+            raster.blit(gx, gy, width, font.getHeight(), pixels);
+        }
+    }
+    
+    private void plotGlyph(BitSet dirty, int line, char c, boolean invert, int color, int gx, int gy) {
+        var info = font.get(c);
+        
+        var width = info.width();
+        var values = info.values();
+        
+        // Offset glyphs may reach into the neighboring lines, so each dirty band is drawn separately
+        for (var band = max(line - 1, 0); band <= line + 1; band++) {
+            if (!dirty.get(band)) {
+                continue;
+            }
+            
+            raster.clip(getBandTop(band), getLineTop(band + 1));
+            
+            for (var y = 0; y < font.getHeight(); y++) {
+                for (var x = 0; x < width; x++) {
+                    var value = values[x + y * width];
+                    
+                    var alpha = (invert) ? 1.0 - value : value;
+                    
+                    raster.put(gx + x, gy + y, color, alpha);
+                }
+            }
+        }
+    }
+    
+    private void updateGlyph(Glyph glyph, int line) {
+        var color = glyph.getColor();
+        var jx = glyph.getOffsetX();
+        var jy = glyph.getOffsetY();
+        
+        glyph.updateAt(time);
+        
+        if (glyph.getColor() != color || glyph.getOffsetX() != jx || glyph.getOffsetY() != jy) {
+            markUpdated(line, line, jy, glyph.getOffsetY());
+        }
+    }
+    
+    private void markUpdated(int first, int last, int jy, int newJy) {
+        if (newJy == jy) {
+            damage.markLines(first, last + 1);
+        }
+        else if (Math.abs(newJy) >= font.getHeight() + ySpace || Math.abs(jy) >= font.getHeight() + ySpace) {
+            damage.markAll();
+        }
+        else {
+            damage.markLines(first - 1, last + 2);
+        }
+    }
+    
+    public void poll() {
+        var batch = head.next.get();
+        
+        // New glyphs with offsets can reach into the line above the one they start on
+        if (batch != null) {
+            damage.markFrom(getLineCount() - 2);
+        }
+        
+        var outputWritten = false;
+        var consumed = false;
+        
+        while (batch != null) {
+            // Output written before a clear is gone along with everything else
+            if (batch.clear) {
+                output.clear();
+                lineIndex.clear();
+                
+                damage.markAll();
+                
+                outputWritten = false;
+                
+                retractable = 0;
+            }
+            
+            var entries = batch.entries.getAndSet(null);
+            
+            if (entries == null) {
+                retractable = 0;
+            }
+            else {
+                pending.addAndGet(-batch.glyphs);
+                
+                consumed = true;
+            }
+            
+            for (var pending : (entries != null) ? entries : List.<Pending>of()) {
+                if (pending instanceof Span span) {
+                    var base = output.size();
+                    var text = span.text();
+                    
+                    output.add(text, span.invert(), span.effect());
+                    
+                    outputWritten = true;
+                    
+                    retractable += text.length();
+                    
+                    for (var i = text.indexOf('\n'); i >= 0; i = text.indexOf('\n', i + 1)) {
+                        lineIndex.add(base + i + 1);
+                    }
+                }
+                else if (pending instanceof Retract retract) {
+                    // Carried glyphs never include a newline, so the line index is unaffected
+                    var count = (int) min(retract.count(), retractable);
+                    
+                    output.removeLast(count);
+                    
+                    retractable -= count;
+                }
+            }
+            
+            head = batch;
+            batch = head.next.get();
+        }
+        
+        if (consumed) {
+            dropCursor.set(head);
+            
+            signalDrained();
+        }
+        
+        if (outputWritten) {
+            trimScrollback();
+            
+            end();
+        }
+        
+        // The queue has caught up, held back writes go in as one batch each and are drawn on the next poll
+        if (stagedGlyphs > 0) {
+            flushStaged();
+        }
+    }
+    
+    public boolean hasPending() {
+        return head.next.get() != null || stagedGlyphs > 0;
+    }
+    
+    public void close() {
+        closed = true;
+        
+        signalDrained();
+        
+        output.close();
+    }
+    
+    private void signalDrained() {
+        if (backpressure != Backpressure.BLOCK) {
+            return;
+        }
+        
+        try {
+            pendingLock.lock();
+            
+            drained.signalAll();
+        }
+        finally {
+            pendingLock.unlock();
+        }
+    }
+    
+    private void trimScrollback() {
+        // The first glyph that stays in memory
+        var cut = 0;
+        
+        if (scrollbackLines > 0 && getLineCount() > scrollbackLines) {
+            cut = lineIndex.getStart(getLineCount() - scrollbackLines);
+        }
+        
+        if (scrollbackGlyphs > 0) {
+            cut = max(cut, getLineCut(output.size() - scrollbackGlyphs));
+        }
+        
+        if (spillGlyphs > 0) {
+            cut -= dropFront(getLineCut(cut - spillGlyphs));
+            
+            output.spill(cut - output.getSpilled(), frameTime);
+        }
+        else {
+            dropFront(cut);
+        }
+    }
+    
+    // Finds the first line start at or after the position, or the position itself when it is on the last line
+    private int getLineCut(int position) {
+        if (position <= 0) {
+            return 0;
+        }
+        
+        var line = lineIndex.getLine(position);
+        
+        if (lineIndex.getStart(line) == position) {
+            return position;
+        }
+        
+        return (line + 1 < getLineCount()) ? lineIndex.getStart(line + 1) : position;
+    }
+    
+    private int dropFront(int position) {
+        if (position <= 0) {
+            return 0;
+        }
+        
+        var lines = lineIndex.getLine(position);
+        var dropped = lineIndex.removeFirst(lines);
+        
+        output.removeFirst(dropped);
+        
+        // A single line longer than the limit loses its oldest glyphs
+        if (dropped < position) {
+            output.removeFirst(position - dropped);
+            
+            lineIndex.trimFirst(position - dropped);
+        }
+        
+        scrollTarget = max(scrollTarget - lines, 0);
+        scrollOffset = max(scrollOffset - lines, 0.0);
+        
+        damage.markAll();
+        
+        return position;
+    }
+    
+    public void scroll(int amount) {
+        scrollTarget = max(0, min(scrollTarget + amount, getLineCount() - getLinesOnScreen()));
+    }
+    
+    public void pageUp() {
+        scroll(-getLinesOnScreen());
+    }
+    
+    public void pageDown() {
+        scroll(getLinesOnScreen());
+    }
+    
+    public void home() {
+        scroll(-getLineCount());
+    }
+    
+    public void end() {
+        scroll(getLineCount());
+    }
+    
+    private interface Pending {
+    }
+    
+    private record Span(String text, boolean invert, Glyph.Effect effect) implements Pending {
+    }
+    
+    private record Retract(int count) implements Pending {
+    }
+    
+    private record Staged(StringBuilder text, RuleSet ruleSet, Glyph.Effect effect, boolean inverted) {
+    }
+    
+    private static class Batch {
+        // Taken by whichever comes first, the loop thread polling it or a writer dropping it
+        private final AtomicReference<List<Pending>> entries;
+        private final Carry carry;
+        private final boolean clear;
+        private final int glyphs;
+        
+        // Whether the output after this batch begins a new line
+        private final boolean lineStart;
+        
+        private final AtomicReference<Batch> next = new AtomicReference<>();
+        
+        private Batch(List<Pending> entries, Carry carry, boolean clear, int glyphs, boolean lineStart) {
+            this.entries = new AtomicReference<>(entries);
+            this.carry = carry;
+            this.clear = clear;
+            this.glyphs = glyphs;
+            this.lineStart = lineStart;
+        }
+    }
+    
+    private record Deferred(int line, char c, boolean invert, int color, int x, int y) {
+    }
+}
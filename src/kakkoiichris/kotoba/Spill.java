@@ -0,0 +1,127 @@
+package kakkoiichris.kotoba;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+public class Spill {
+    // Each record is a char followed by the color, with the inverted flag in the top byte
+    private static final int RECORD_SIZE = 6;
+    private static final int SEGMENT_GLYPHS = 1 << 16;
+    private static final int SEGMENT_SIZE = SEGMENT_GLYPHS * RECORD_SIZE;
+    
+    private static final int INVERTED = 1 << 24;
+    
+    private final Path path;
+    private final FileChannel channel;
+    
+    // Segments are reused in a ring, so the file never holds more than the capacity
+    private final MappedByteBuffer[] segments;
+    
+    private long first = 0;
+    private long end = 0;
+    
+    public Spill(int capacity) {
+        segments = new MappedByteBuffer[(capacity + SEGMENT_GLYPHS - 1) / SEGMENT_GLYPHS + 1];
+        
+        try {
+            path = Files.createTempFile("kotoba", ".spill");
+            
+            path.toFile().deleteOnExit();
+            
+            channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+        catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+    
+    public int size() {
+        return (int) (end - first);
+    }
+    
+    public void add(char c, boolean inverted, int color) {
+        var segment = segment(end, true);
+        var offset = (int) (end % SEGMENT_GLYPHS) * RECORD_SIZE;
+        
+        segment.putChar(offset, c);
+        segment.putInt(offset + 2, (inverted) ? (color & 0xFFFFFF) | INVERTED : color & 0xFFFFFF);
+        
+        end++;
+    }
+    
+    public char getChar(int index) {
+        var position = first + index;
+        
+        return segment(position, false).getChar((int) (position % SEGMENT_GLYPHS) * RECORD_SIZE);
+    }
+    
+    public boolean isInverted(int index) {
+        return (getRecord(index) & INVERTED) != 0;
+    }
+    
+    public int getColor(int index) {
+        return getRecord(index) & 0xFFFFFF;
+    }
+    
+    public void removeFirst(int count) {
+        var from = first / SEGMENT_GLYPHS;
+        
+        first = Math.min(first + count, end);
+        
+        for (var i = from; i < first / SEGMENT_GLYPHS; i++) {
+            segments[(int) (i % segments.length)] = null;
+        }
+    }
+    
+    public void clear() {
+        Arrays.fill(segments, null);
+        
+        first = 0;
+        end = 0;
+    }
+    
+    public void close() {
+        clear();
+        
+        try {
+            channel.close();
+        }
+        catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        
+        // Mapped segments are only released once collected, until then some systems refuse the delete and it is left to deleteOnExit
+        try {
+            Files.deleteIfExists(path);
+        }
+        catch (IOException ignored) {
+        }
+    }
+    
+    private int getRecord(int index) {
+        var position = first + index;
+        
+        return segment(position, false).getInt((int) (position % SEGMENT_GLYPHS) * RECORD_SIZE + 2);
+    }
+    
+    // Segments are mapped on first write and paged in by the OS when scrolled back to
+    private MappedByteBuffer segment(long position, boolean create) {
+        var slot = (int) ((position / SEGMENT_GLYPHS) % segments.length);
+        
+        if (segments[slot] == null && create) {
+            try {
+                segments[slot] = channel.map(FileChannel.MapMode.READ_WRITE, (long) slot * SEGMENT_SIZE, SEGMENT_SIZE);
+            }
+            catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        
+        return segments[slot];
+    }
+}